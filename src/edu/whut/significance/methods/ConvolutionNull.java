@@ -0,0 +1,211 @@
+package edu.whut.significance.methods;
+
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Semi-analytic null of the max U value, built without drawing permutations.
+ * <p>
+ * The columns are shuffled independently, so the sum of a window is a sum of independent
+ * column contributions. The contribution of a column is taken from the window sums of
+ * that column over all circular positions of its concatenated region blocks, binned on a
+ * common grid whose step gives every column columnBinNum bins on average, however many
+ * columns there are. The column histograms are convolved pairwise, level by level, so every
+ * FFT is only as long as the two supports it combines. The max over the scanned windows is
+ * approximated by treating the windows that overlap by less than half as independent.
+ */
+class ConvolutionNull {
+    //below this many products two histograms are convolved directly
+    private static final int DIRECT_LIMIT = 1 << 16;
+
+    private final int[] lengths;
+    private final int probeNum;
+    private final int colNum;
+    private final double[] step;
+    private final long[] offset;
+    //upper[l][k] = P(S >= (offset + k) * step), lower[l][k] = P(S <= (offset + k) * step)
+    private final double[][] upper;
+    private final double[][] lower;
+
+    /**
+     * @param kernel       the permutation kernel holding the region blocks
+     * @param activeIds    the active region ids
+     * @param probeNum     the number of rows scanned by a permutation
+     * @param lengths      the distinct window lengths
+     * @param columnBinNum the mean number of bins per column
+     */
+    ConvolutionNull(PermuteKernel kernel, int[] activeIds, int probeNum, int[] lengths, int columnBinNum) {
+        this.lengths = lengths;
+        this.probeNum = probeNum;
+        this.colNum = kernel.getColNum();
+        step = new double[lengths.length];
+        offset = new long[lengths.length];
+        upper = new double[lengths.length][];
+        lower = new double[lengths.length][];
+
+        //the range of the window sums of every column; one circular prefix sum buffer is reused
+        double[] column = new double[probeNum];
+        double[] prefix = new double[2 * probeNum + 1];
+        double[][] min = new double[lengths.length][colNum];
+        double[][] max = new double[lengths.length][colNum];
+        for (int j = 0; j < colNum; j++) {
+            prefixSums(kernel, activeIds, j, column, prefix);
+            for (int l = 0; l < lengths.length; l++) {
+                min[l][j] = Double.POSITIVE_INFINITY;
+                max[l][j] = Double.NEGATIVE_INFINITY;
+                for (int p = 0; p < probeNum; p++) {
+                    double sum = prefix[p + lengths[l]] - prefix[p];
+                    min[l][j] = Math.min(min[l][j], sum);
+                    max[l][j] = Math.max(max[l][j], sum);
+                }
+            }
+        }
+
+        for (int l = 0; l < lengths.length; l++) {
+            convolve(l, kernel, activeIds, column, prefix, min[l], max[l], columnBinNum);
+        }
+    }
+
+    //circular prefix sums of column j
+    private void prefixSums(PermuteKernel kernel, int[] activeIds, int j, double[] column, double[] prefix) {
+        kernel.column(activeIds, activeIds.length, j, column, probeNum);
+        for (int i = 0; i < 2 * probeNum; i++) {
+            prefix[i + 1] = prefix[i] + column[i % probeNum];
+        }
+    }
+
+    private void convolve(int l, PermuteKernel kernel, int[] activeIds, double[] column, double[] prefix,
+                          double[] min, double[] max, int columnBinNum) {
+        int length = lengths[l];
+        double range = 0;
+        for (int j = 0; j < colNum; j++) {
+            range += max[j] - min[j];
+        }
+        double h = range > 0 ? range / ((double) colNum * columnBinNum) : 1;
+        step[l] = h;
+
+        List<double[]> histograms = new ArrayList<>();
+        long base = 0;
+        for (int j = 0; j < colNum; j++) {
+            long low = Math.round(min[j] / h);
+            base += low;
+            //a point mass only shifts the sum
+            if (max[j] == min[j]) continue;
+
+            double[] histogram = new double[(int) (Math.round(max[j] / h) - low) + 1];
+            prefixSums(kernel, activeIds, j, column, prefix);
+            for (int p = 0; p < probeNum; p++) {
+                double sum = prefix[p + length] - prefix[p];
+                histogram[(int) (Math.round(sum / h) - low)] += 1.0 / probeNum;
+            }
+            histograms.add(histogram);
+        }
+        offset[l] = base;
+
+        double[] density = convolveAll(histograms);
+        int size = density.length;
+        upper[l] = new double[size + 1];
+        lower[l] = new double[size + 1];
+        for (int k = size - 1; k >= 0; k--) {
+            upper[l][k] = upper[l][k + 1] + density[k];
+        }
+        for (int k = 0; k < size; k++) {
+            lower[l][k] = (k > 0 ? lower[l][k - 1] : 0) + density[k];
+        }
+    }
+
+    //the distribution of the sum, by pairwise convolutions of the histograms
+    private static double[] convolveAll(List<double[]> histograms) {
+        if (histograms.isEmpty()) return new double[]{1.0};
+        while (histograms.size() > 1) {
+            List<double[]> next = new ArrayList<>((histograms.size() + 1) / 2);
+            for (int i = 0; i + 1 < histograms.size(); i += 2) {
+                next.add(convolve(histograms.get(i), histograms.get(i + 1)));
+            }
+            if (histograms.size() % 2 == 1) {
+                next.add(histograms.get(histograms.size() - 1));
+            }
+            histograms = next;
+        }
+        return histograms.get(0);
+    }
+
+    //the linear convolution of two histograms, negative FFT round-off clipped to 0
+    private static double[] convolve(double[] a, double[] b) {
+        int n = a.length + b.length - 1;
+        double[] c = new double[n];
+        if ((long) a.length * b.length <= DIRECT_LIMIT) {
+            for (int i = 0; i < a.length; i++) {
+                for (int k = 0; k < b.length; k++) {
+                    c[i + k] += a[i] * b[k];
+                }
+            }
+            return c;
+        }
+
+        //both real histograms share one complex transform, as real and imaginary part
+        int size = Integer.highestOneBit(n - 1) << 1;
+        double[][] column = new double[2][size];
+        System.arraycopy(a, 0, column[0], 0, a.length);
+        System.arraycopy(b, 0, column[1], 0, b.length);
+        double[] re = new double[size];
+        double[] im = new double[size];
+        Arrays.fill(re, 1.0);
+        multiplySpectra(column, re, im);
+
+        double[][] product = new double[][]{re, im};
+        FastFourierTransformer.transformInPlace(product, DftNormalization.STANDARD, TransformType.INVERSE);
+        for (int k = 0; k < n; k++) {
+            c[k] = Math.max(re[k], 0.0);
+        }
+        return c;
+    }
+
+    //transforms column[0] + i column[1] and multiplies the spectra of both real columns into re, im
+    private static void multiplySpectra(double[][] column, double[] re, double[] im) {
+        int size = re.length;
+        FastFourierTransformer.transformInPlace(column, DftNormalization.STANDARD, TransformType.FORWARD);
+        double[] xr = column[0];
+        double[] xi = column[1];
+        for (int k = 0; k < size; k++) {
+            int m = (size - k) & (size - 1);
+            //A = (X[k] + conj(X[-k])) / 2, B = (X[k] - conj(X[-k])) / 2i
+            double ar = (xr[k] + xr[m]) / 2, ai = (xi[k] - xi[m]) / 2;
+            double br = (xi[k] + xi[m]) / 2, bi = (xr[m] - xr[k]) / 2;
+            double pr = ar * br - ai * bi;
+            double pi = ar * bi + ai * br;
+            double r = re[k] * pr - im[k] * pi;
+            im[k] = re[k] * pi + im[k] * pr;
+            re[k] = r;
+        }
+    }
+
+    /**
+     * The probability that the max U value of length class l exceeds u.
+     */
+    double upperTail(int l, double u) {
+        double threshold = u * colNum * lengths[l];
+        double[] up = upper[l];
+        double[] low = lower[l];
+        int size = up.length - 1;
+
+        //P(S > t) + P(S < -t)
+        long above = (long) Math.floor(threshold / step[l]) + 1 - offset[l];
+        long below = (long) Math.ceil(-threshold / step[l]) - 1 - offset[l];
+        double tail = 0;
+        if (above <= 0) tail += 1.0;
+        else if (above < size) tail += up[(int) above];
+        if (below >= size) tail += 1.0;
+        else if (below >= 0) tail += low[(int) below];
+        tail = Math.min(tail, 1.0);
+
+        //windows overlapping by less than half their length count as independent
+        int windowNum = Math.max(1, 2 * (probeNum - 2 * lengths[l] + 1) / lengths[l]);
+        return -Math.expm1(windowNum * Math.log1p(-tail));
+    }
+}
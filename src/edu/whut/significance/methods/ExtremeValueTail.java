@@ -0,0 +1,188 @@
+package edu.whut.significance.methods;
+
+import org.apache.commons.math3.special.Gamma;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generalized extreme value fit of the max U values of one length class.
+ * <p>
+ * The parameters are estimated with Hosking's probability weighted moments, which stay
+ * stable for a few hundred permutations; a shape close to 0 is treated as the Gumbel case.
+ * A Kolmogorov-Smirnov test against the fitted distribution tells whether the tail may be
+ * used or the caller should fall back to empirical counting. The parameters are fitted from
+ * the same sample, so the usual KS null distribution would accept far too many poor fits
+ * (the Lilliefors problem); the p value is instead taken from a parametric bootstrap, which
+ * refits every sample drawn from the fitted distribution.
+ */
+public class ExtremeValueTail {
+    private static final double EULER = 0.5772156649015329;
+
+    private double location;
+    private double scale;
+    //Hosking's k, i.e. minus the usual GEV shape; 0 is the Gumbel distribution
+    private double shape;
+    private double ksStatistic;
+    private double ksPValue;
+    private int sampleNum;
+
+    /**
+     * Fits one column of the max U matrix.
+     *
+     * @param maxUScore    the max U values, one row per permutation
+     * @param index        the length class
+     * @param rowNum       the number of permutations drawn for the class
+     * @param bootstrapNum the number of bootstrap samples for the KS p value
+     * @param random       the random stream of the bootstrap
+     * @return the fit, or null if the samples are too few or degenerate
+     */
+    static ExtremeValueTail fit(double[][] maxUScore, int index, int rowNum, int bootstrapNum, Random random) {
+        double[] x = new double[rowNum];
+        for (int j = 0; j < rowNum; j++) {
+            x[j] = maxUScore[j][index];
+        }
+        return fit(x, bootstrapNum, random);
+    }
+
+    /**
+     * Fits a sample.
+     *
+     * @param sample       the sample, not modified
+     * @param bootstrapNum the number of bootstrap samples for the KS p value
+     * @param random       the random stream of the bootstrap
+     * @return the fit, or null if the sample is too small or degenerate
+     */
+    public static ExtremeValueTail fit(double[] sample, int bootstrapNum, Random random) {
+        double[] x = sample.clone();
+        Arrays.sort(x);
+        ExtremeValueTail tail = fitSorted(x);
+        if (tail == null) return null;
+
+        //goodness of fit, with the bootstrap null distribution of the statistic
+        tail.ksStatistic = tail.ksDistance(x);
+        int exceedNum = 0;
+        double[] y = new double[x.length];
+        for (int b = 0; b < bootstrapNum; b++) {
+            for (int i = 0; i < y.length; i++) {
+                y[i] = tail.quantile(random.nextDouble());
+            }
+            Arrays.sort(y);
+            ExtremeValueTail refit = fitSorted(y);
+            if (refit == null || refit.ksDistance(y) >= tail.ksStatistic) exceedNum++;
+        }
+        tail.ksPValue = (exceedNum + 1.0) / (bootstrapNum + 1.0);
+        return tail;
+    }
+
+    //probability weighted moment estimates from an ascending sample
+    private static ExtremeValueTail fitSorted(double[] x) {
+        int rowNum = x.length;
+        if (rowNum < 3) return null;
+        if (x[rowNum - 1] <= x[0]) return null;
+
+        //probability weighted moments b0, b1, b2
+        double b0 = 0, b1 = 0, b2 = 0;
+        for (int i = 0; i < rowNum; i++) {
+            b0 += x[i];
+            b1 += x[i] * i / (rowNum - 1);
+            b2 += x[i] * i * (i - 1) / ((double) (rowNum - 1) * (rowNum - 2));
+        }
+        b0 /= rowNum;
+        b1 /= rowNum;
+        b2 /= rowNum;
+
+        ExtremeValueTail tail = new ExtremeValueTail();
+        tail.sampleNum = rowNum;
+        double c = (2 * b1 - b0) / (3 * b2 - b0) - Math.log(2) / Math.log(3);
+        double k = 7.8590 * c + 2.9554 * c * c;
+        if (Math.abs(k) < 1e-6 || Double.isNaN(k)) {
+            tail.shape = 0;
+            tail.scale = (2 * b1 - b0) / Math.log(2);
+            tail.location = b0 - EULER * tail.scale;
+        } else {
+            double g = Gamma.gamma(1 + k);
+            tail.shape = k;
+            tail.scale = (2 * b1 - b0) * k / (g * (1 - Math.pow(2, -k)));
+            tail.location = b0 + tail.scale * (g - 1) / k;
+        }
+        if (!(tail.scale > 0)) return null;
+        return tail;
+    }
+
+    //the KS distance between an ascending sample and the fit
+    private double ksDistance(double[] x) {
+        int rowNum = x.length;
+        double d = 0;
+        for (int i = 0; i < rowNum; i++) {
+            double f = cumulativeProbability(x[i]);
+            d = Math.max(d, Math.max((i + 1.0) / rowNum - f, f - (double) i / rowNum));
+        }
+        return d;
+    }
+
+    public double cumulativeProbability(double x) {
+        return Math.exp(-reducedTail(x));
+    }
+
+    /**
+     * The probability that the max U value of a permutation exceeds u.
+     * Computed with expm1, so it stays accurate far into the tail.
+     */
+    public double upperTail(double u) {
+        return -Math.expm1(-reducedTail(u));
+    }
+
+    /**
+     * The value with cumulative probability p, 0 < p < 1.
+     */
+    public double quantile(double p) {
+        double y = -Math.log(p);
+        if (shape == 0) {
+            return location - scale * Math.log(y);
+        }
+        return location + scale * (1 - Math.pow(y, shape)) / shape;
+    }
+
+    //-log F(x)
+    private double reducedTail(double x) {
+        double z = (x - location) / scale;
+        if (shape == 0) {
+            return Math.exp(-z);
+        }
+        double t = 1 - shape * z;
+        if (t <= 0) {
+            return shape > 0 ? 0 : Double.POSITIVE_INFINITY;
+        }
+        return Math.pow(t, 1 / shape);
+    }
+
+    public double getLocation() {
+        return location;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * The usual GEV shape xi, positive for a heavy tail.
+     */
+    public double getShape() {
+        return -shape;
+    }
+
+    public double getKsPValue() {
+        return ksPValue;
+    }
+
+    public boolean isAccepted(double alpha) {
+        return ksPValue >= alpha;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GEV{ n = %d, location = %.4e, scale = %.4e, shape = %.4f, KS = %.4f, KS p = %.4f }",
+                sampleNum, location, scale, -shape, ksStatistic, ksPValue);
+    }
+}
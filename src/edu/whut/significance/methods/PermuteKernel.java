@@ -0,0 +1,387 @@
+package edu.whut.significance.methods;
+
+import edu.whut.significance.util.ParallelToolbox;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Permutation kernel shared by SAIC and SAICEV.
+ * <p>
+ * The non-zero entries of the CNA region blocks are copied once, grouped by column and
+ * region. A permutation shuffles the region order of every column in an int[] and adds
+ * the stored entries of the column straight into a reused probeSum buffer, so no permuted
+ * matrix is ever built and the zeros left by thresholding are never touched.
+ * <p>
+ * In the cyclic shift scheme the active blocks keep their order and every column of their
+ * concatenation is rotated by a random offset instead; the entries are moved by index
+ * arithmetic, so a column costs one random draw. The shifts relative to column 0 may also be
+ * passed in as strata, so that a set of permutations covers them evenly.
+ */
+class PermuteKernel {
+    //fronts per tile of the window scan, so both window ends of all lengths stay in cache
+    private static final int SCAN_TILE = 2048;
+
+    private final int colNum;
+    private final int[] blockLength;
+    //the entries of region r in column j are entryStart[j * regionNum + r] .. entryStart[j * regionNum + r + 1]
+    private final int[] entryStart;
+    private final int[] entryOffset;
+    private final double[] entryValue;
+    private boolean cyclicShift;
+
+    /**
+     * @param rawMatrix the thresholded matrix, probes by samples
+     * @param starts    the first probe of every CNA region
+     * @param lengths   the length of every CNA region
+     */
+    PermuteKernel(RealMatrix rawMatrix, int[] starts, int[] lengths) {
+        int regionNum = starts.length;
+        colNum = rawMatrix.getColumnDimension();
+        blockLength = Arrays.copyOf(lengths, regionNum);
+
+        //count, then fill
+        int[] cursor = new int[colNum * regionNum + 1];
+        for (int r = 0; r < regionNum; r++) {
+            int region = r;
+            for (int t = 0; t < lengths[r]; t++) {
+                visitRow(rawMatrix, starts[r] + t, (j, v) -> cursor[j * regionNum + region + 1]++);
+            }
+        }
+        for (int c = 0; c < colNum * regionNum; c++) {
+            cursor[c + 1] += cursor[c];
+        }
+        entryStart = Arrays.copyOf(cursor, cursor.length);
+        entryOffset = new int[cursor[cursor.length - 1]];
+        entryValue = new double[cursor[cursor.length - 1]];
+
+        for (int r = 0; r < regionNum; r++) {
+            int region = r;
+            for (int t = 0; t < lengths[r]; t++) {
+                int offset = t;
+                visitRow(rawMatrix, starts[r] + t, (j, v) -> {
+                    int e = cursor[j * regionNum + region]++;
+                    entryOffset[e] = offset;
+                    entryValue[e] = v;
+                });
+            }
+        }
+    }
+
+    //the non-zero entries of a row, in column order
+    private static void visitRow(RealMatrix rawMatrix, int row, SparseProbeMatrix.EntryVisitor visitor) {
+        if (rawMatrix instanceof SparseProbeMatrix) {
+            ((SparseProbeMatrix) rawMatrix).walkRow(row, visitor);
+            return;
+        }
+        for (int j = 0; j < rawMatrix.getColumnDimension(); j++) {
+            double v = rawMatrix.getEntry(row, j);
+            if (v != 0) visitor.visit(j, v);
+        }
+    }
+
+    int getRegionNum() {
+        return blockLength.length;
+    }
+
+    int getColNum() {
+        return colNum;
+    }
+
+    void setCyclicShift(boolean cyclicShift) {
+        this.cyclicShift = cyclicShift;
+    }
+
+    /**
+     * Draws one permutation of the active regions and leaves the permuted row sums in
+     * probeSum[1..rowNum], probeSum[0] = 0. Rows behind the last region stay zero.
+     *
+     * @param activeIds the active region ids
+     * @param activeNum the number of active regions
+     * @param random    the random stream of this permutation
+     * @param order     a scratch buffer of at least activeNum entries
+     * @param probeSum  the output buffer of at least rowNum + 1 entries
+     * @param rowNum    the number of rows of the permuted matrix
+     */
+    void permute(int[] activeIds, int activeNum, Random random, int[] order, double[] probeSum, int rowNum) {
+        permute(activeIds, activeNum, random, order, probeSum, rowNum, null);
+    }
+
+    /**
+     * As {@link #permute(int[], int, Random, int[], double[], int)}, with stratified cyclic
+     * shifts: column j > 0 is rotated by strata[j] of a turn from column 0. The strata only
+     * apply to the cyclic shift scheme; null draws every shift independently.
+     */
+    void permute(int[] activeIds, int activeNum, Random random, int[] order, double[] probeSum, int rowNum,
+                 double[] strata) {
+        Arrays.fill(probeSum, 0, rowNum + 1, 0.0);
+        if (cyclicShift) {
+            rotate(activeIds, activeNum, random, order, probeSum, strata);
+            return;
+        }
+        for (int a = 0; a < activeNum; a++) {
+            order[a] = a;
+        }
+
+        for (int j = 0; j < colNum; j++) {
+            shuffle(order, activeNum, random);
+            addColumn(j, activeIds, activeNum, order, activeNum, probeSum);
+        }
+    }
+
+    /**
+     * As {@link #permute(int[], int, Random, int[], double[], int)}, with the rows of the one
+     * permutation split over the threads. The shuffles are drawn first, column by column from
+     * the same random stream; then every thread adds the entries falling into its row range,
+     * still column by column, so every row sum is added in the same order and probeSum is
+     * bit-identical to the serial one. The cyclic shift scheme is not split.
+     *
+     * @param columnOrder a scratch buffer of at least colNum * activeNum entries, activeNum when
+     *                    the permutation is not split
+     * @param columnStart a scratch buffer of at least colNum * (activeNum + 1) entries, unused
+     *                    when the permutation is not split
+     * @param threadNum   the number of worker threads
+     */
+    void permuteSplit(int[] activeIds, int activeNum, Random random, int[] columnOrder, int[] columnStart,
+                      double[] probeSum, int rowNum, int threadNum) {
+        if (cyclicShift || threadNum <= 1) {
+            permute(activeIds, activeNum, random, columnOrder, probeSum, rowNum);
+            return;
+        }
+        int[] order = new int[activeNum];
+        for (int a = 0; a < activeNum; a++) {
+            order[a] = a;
+        }
+        //the block order and block starts of every column
+        for (int j = 0; j < colNum; j++) {
+            shuffle(order, activeNum, random);
+            int base = j * activeNum;
+            int startBase = j * (activeNum + 1);
+            columnStart[startBase] = 0;
+            for (int a = 0; a < activeNum; a++) {
+                int id = activeIds[order[a]];
+                columnOrder[base + a] = id;
+                columnStart[startBase + a + 1] = columnStart[startBase + a] + blockLength[id];
+            }
+        }
+
+        probeSum[0] = 0.0;
+        int regionNum = blockLength.length;
+        ParallelToolbox.parallelFor(rowNum, threadNum, (from, to) -> {
+            Arrays.fill(probeSum, from + 1, to + 1, 0.0);
+            for (int j = 0; j < colNum; j++) {
+                int base = j * activeNum;
+                int startBase = j * (activeNum + 1);
+                //the last block starting at or before from
+                int low = 0, high = activeNum;
+                while (high - low > 1) {
+                    int mid = (low + high) >>> 1;
+                    if (columnStart[startBase + mid] <= from) low = mid;
+                    else high = mid;
+                }
+                for (int a = low; a < activeNum && columnStart[startBase + a] < to; a++) {
+                    int id = columnOrder[base + a];
+                    int k = columnStart[startBase + a];
+                    for (int e = entryStart[j * regionNum + id]; e < entryStart[j * regionNum + id + 1]; e++) {
+                        int position = k + entryOffset[e];
+                        if (position < from) continue;
+                        if (position >= to) break;
+                        probeSum[1 + position] += entryValue[e];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Draws one permutation for two kernels over the same samples, e.g. the amp and del
+     * blocks, with one shuffle per column: the shuffled order of max(firstNum, secondNum)
+     * slots is shared, and each kernel takes the slots below its own count in that order,
+     * which is again a uniform ordering of its blocks. The outputs are as in
+     * {@link #permute(int[], int, Random, int[], double[], int)}; the cyclic shift scheme
+     * is not shared.
+     *
+     * @param order a scratch buffer of at least max(firstNum, secondNum) entries
+     */
+    static void permutePair(PermuteKernel first, int[] firstIds, int firstNum, double[] firstSum, int firstRows,
+                            PermuteKernel second, int[] secondIds, int secondNum, double[] secondSum, int secondRows,
+                            Random random, int[] order) {
+        Arrays.fill(firstSum, 0, firstRows + 1, 0.0);
+        Arrays.fill(secondSum, 0, secondRows + 1, 0.0);
+        int slotNum = Math.max(firstNum, secondNum);
+        for (int a = 0; a < slotNum; a++) {
+            order[a] = a;
+        }
+
+        for (int j = 0; j < first.colNum; j++) {
+            shuffle(order, slotNum, random);
+            first.addColumn(j, firstIds, firstNum, order, slotNum, firstSum);
+            second.addColumn(j, secondIds, secondNum, order, slotNum, secondSum);
+        }
+    }
+
+    //adds column j of the blocks activeIds[slots[a]] one after another from probeSum[1]; slots >= activeNum are skipped
+    private void addColumn(int j, int[] activeIds, int activeNum, int[] slots, int slotNum, double[] probeSum) {
+        int base = j * blockLength.length;
+        int k = 1;
+        for (int a = 0; a < slotNum; a++) {
+            if (slots[a] >= activeNum) continue;
+            int id = activeIds[slots[a]];
+            for (int e = entryStart[base + id]; e < entryStart[base + id + 1]; e++) {
+                probeSum[k + entryOffset[e]] += entryValue[e];
+            }
+            k += blockLength[id];
+        }
+    }
+
+    //order[a] is reused for the position of active block a in the concatenation
+    private void rotate(int[] activeIds, int activeNum, Random random, int[] order, double[] probeSum,
+                        double[] strata) {
+        int size = 0;
+        for (int a = 0; a < activeNum; a++) {
+            order[a] = size;
+            size += blockLength[activeIds[a]];
+        }
+
+        int regionNum = blockLength.length;
+        int firstShift = 0;
+        for (int j = 0; j < colNum; j++) {
+            int shift;
+            if (strata == null || j == 0) {
+                shift = random.nextInt(size);
+                firstShift = shift;
+            } else {
+                shift = (firstShift + (int) (strata[j] * size)) % size;
+            }
+
+            int base = j * regionNum;
+            for (int a = 0; a < activeNum; a++) {
+                int id = activeIds[a];
+                int k = order[a] + shift;
+                for (int e = entryStart[base + id]; e < entryStart[base + id + 1]; e++) {
+                    int position = k + entryOffset[e];
+                    if (position >= size) position -= size;
+                    probeSum[1 + position] += entryValue[e];
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies column j of the active regions, in the given order, into column[0..rowNum).
+     * Rows behind the last region are zero, as in {@link #permute}.
+     */
+    void column(int[] activeIds, int activeNum, int j, double[] column, int rowNum) {
+        Arrays.fill(column, 0, rowNum, 0.0);
+        int base = j * blockLength.length;
+        int k = 0;
+        for (int a = 0; a < activeNum; a++) {
+            int id = activeIds[a];
+            for (int e = entryStart[base + id]; e < entryStart[base + id + 1]; e++) {
+                column[k + entryOffset[e]] = entryValue[e];
+            }
+            k += blockLength[id];
+        }
+    }
+
+    /**
+     * Turns the row sums left by {@link #permute} into prefix sums in place.
+     */
+    static void accumulate(double[] probeSum, int rowNum) {
+        for (int i = 1; i < rowNum + 1; i++) {
+            probeSum[i] = probeSum[i - 1] + probeSum[i];
+        }
+    }
+
+    /**
+     * Finds the max U value of every window length in one blocked pass over probeSum.
+     * As in the original findMaxUScore, the windows of length L start at 0 .. probeNum - 2L.
+     * The max |window sum| is tracked per length and divided once at the end, which gives
+     * exactly the max of |window sum| / (colNum * L).
+     *
+     * @param probeSum  the prefix sums, probeSum[0] = 0
+     * @param probeNum  the number of rows
+     * @param lengths   the distinct window lengths
+     * @param colNum    the number of samples
+     * @param maxUScore the output, one max U value per length
+     */
+    static void scanMaxUScore(double[] probeSum, int probeNum, int[] lengths, int colNum, double[] maxUScore) {
+        int lengthNum = lengths.length;
+        Arrays.fill(maxUScore, 0, lengthNum, 0.0);
+        scanTiles(probeSum, probeNum, lengths, 0, probeNum, maxUScore);
+
+        for (int l = 0; l < lengthNum; l++) {
+            maxUScore[l] = maxUScore[l] / (colNum * lengths[l]);
+        }
+    }
+
+    /**
+     * As {@link #scanMaxUScore(double[], int, int[], int, double[])}, with the tiles of window
+     * fronts split over the threads; a max does not depend on the order, so the result is the same.
+     */
+    static void scanMaxUScore(double[] probeSum, int probeNum, int[] lengths, int colNum, double[] maxUScore,
+                              int threadNum) {
+        int lengthNum = lengths.length;
+        int tileNum = (probeNum + SCAN_TILE - 1) / SCAN_TILE;
+        Arrays.fill(maxUScore, 0, lengthNum, 0.0);
+        ParallelToolbox.parallelFor(tileNum, threadNum, (from, to) -> {
+            double[] max = new double[lengthNum];
+            scanTiles(probeSum, probeNum, lengths, from * SCAN_TILE, Math.min(probeNum, to * SCAN_TILE), max);
+            synchronized (maxUScore) {
+                for (int l = 0; l < lengthNum; l++) {
+                    maxUScore[l] = Math.max(maxUScore[l], max[l]);
+                }
+            }
+        });
+
+        for (int l = 0; l < lengthNum; l++) {
+            maxUScore[l] = maxUScore[l] / (colNum * lengths[l]);
+        }
+    }
+
+    //raises max[l] to the max |window sum| of length lengths[l] over the fronts from .. to
+    private static void scanTiles(double[] probeSum, int probeNum, int[] lengths, int from, int to, double[] max) {
+        int lengthNum = lengths.length;
+        for (int tile = from; tile < to; tile += SCAN_TILE) {
+            int tileEnd = Math.min(to, tile + SCAN_TILE);
+            for (int l = 0; l < lengthNum; l++) {
+                int length = lengths[l];
+                int end = Math.min(tileEnd, probeNum - 2 * length + 1);
+                double lengthMax = max[l];
+                for (int front = tile; front < end; front++) {
+                    double regionSum = Math.abs(probeSum[front + length] - probeSum[front]);
+                    if (regionSum > lengthMax) {
+                        lengthMax = regionSum;
+                    }
+                }
+                max[l] = lengthMax;
+            }
+        }
+    }
+
+    /**
+     * Builds the table mapping a CNA length to its index in the sorted distinct lengths.
+     *
+     * @param lengths the sorted distinct lengths
+     * @return the table, -1 for the lengths not present
+     */
+    static int[] lengthIndexTable(int[] lengths) {
+        int[] table = new int[lengths[lengths.length - 1] + 1];
+        Arrays.fill(table, -1);
+        for (int l = 0; l < lengths.length; l++) {
+            table[lengths[l]] = l;
+        }
+        return table;
+    }
+
+    //the same swaps as Collections.shuffle, on a primitive array
+    private static void shuffle(int[] order, int size, Random random) {
+        for (int i = size; i > 1; i--) {
+            int k = random.nextInt(i);
+            int temp = order[i - 1];
+            order[i - 1] = order[k];
+            order[k] = temp;
+        }
+    }
+}
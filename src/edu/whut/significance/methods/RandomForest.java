@@ -1,17 +1,14 @@
 package edu.whut.significance.methods;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import edu.whut.significance.dataset.RawData;
 import edu.whut.significance.dataset.Region;
 import edu.whut.significance.dataset.ResultData;
 import edu.whut.significance.util.BioToolbox;
-import org.apache.commons.math3.linear.BlockRealMatrix;
-import org.apache.commons.math3.linear.RealMatrix;
+import edu.whut.significance.util.ParallelToolbox;
 import org.apache.commons.math3.stat.StatUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -22,13 +19,61 @@ public class RandomForest {
     int probeNum;
     private RawData rawData;
     private ResultData resultData;
-    private AbstractSig saic;
     private boolean enableDedugeInfo = false;
     private Logger m_log;
+    private boolean parallelBagging;
+    private int threadNum;
+    private boolean cacheSamples;
+    private boolean reuseDuplicateBags;
+    private long randomSeed;
+    private SampleCache sampleCache;
+    private int[] firstBag;
+    private int[] weights;
+    private ResultData[] bagResults;
+    private double[] votes;
 
     public RandomForest(RawData rawData, ResultData resultData) {
+        this(rawData, resultData, Parameters.parallelBagging, Parameters.threadNum);
+    }
+
+    /**
+     * @param parallelBagging run the bags on a pool of threadNum threads
+     * @param threadNum       the number of worker threads, shared by the bags and their SAIC runs
+     */
+    public RandomForest(RawData rawData, ResultData resultData, boolean parallelBagging, int threadNum) {
+        this(rawData, resultData, parallelBagging, threadNum, Parameters.cacheSamples);
+    }
+
+    /**
+     * @param cacheSamples threshold every sample once and assemble the bags from the cached samples
+     */
+    public RandomForest(RawData rawData, ResultData resultData, boolean parallelBagging, int threadNum,
+                        boolean cacheSamples) {
+        this(rawData, resultData, parallelBagging, threadNum, cacheSamples, Parameters.reuseDuplicateBags);
+    }
+
+    /**
+     * @param reuseDuplicateBags a repeated sample set reuses the result of its first bag instead of
+     *                           being rerun with a seed of its own
+     */
+    public RandomForest(RawData rawData, ResultData resultData, boolean parallelBagging, int threadNum,
+                        boolean cacheSamples, boolean reuseDuplicateBags) {
+        this(rawData, resultData, parallelBagging, threadNum, cacheSamples, reuseDuplicateBags, Parameters.randomSeed);
+    }
+
+    /**
+     * @param randomSeed the seed of the forest: bag b draws its samples and its SAIC seed from
+     *                   streams derived from (randomSeed, b), serial or parallel
+     */
+    public RandomForest(RawData rawData, ResultData resultData, boolean parallelBagging, int threadNum,
+                        boolean cacheSamples, boolean reuseDuplicateBags, long randomSeed) {
         this.rawData = rawData;
         this.resultData = resultData;
+        this.parallelBagging = parallelBagging;
+        this.threadNum = threadNum;
+        this.cacheSamples = cacheSamples;
+        this.reuseDuplicateBags = reuseDuplicateBags;
+        this.randomSeed = randomSeed;
         sampleNum = rawData.getDataMatrix().getRowDimension();
         probeNum = rawData.getDataMatrix().getColumnDimension();
         m_log = Logger.getLogger("significanceAnalysis");
@@ -37,88 +82,190 @@ public class RandomForest {
     }
 
     public void process() {
-        List<RawData> rawDataList = new ArrayList<>();
-        List<ResultData> resultDataList = new ArrayList<>();
-        sample(rawDataList);
-
-        for (RawData tempRawData : rawDataList) {
-            saic = new SAIC();
-//            saic = new SAICEV();
-            ResultData tempResultData = new ResultData();
-            saic.preprocess(tempRawData);
-            saic.process(tempResultData);
-            if (tempResultData.getRegionSet().size() > 0)
-                resultDataList.add(tempResultData);
+        if (cacheSamples) {
+            GlobalParameters globalParameters = new GlobalParameters();
+            sampleCache = new SampleCache(rawData.getDataMatrix(), globalParameters.getAmpThreshold(),
+                    globalParameters.getDelThreshold(), threadNum);
         }
 
+        int bagNum = Parameters.sampleFrequency;
+        int[][] bagIds = new int[bagNum][];
+        for (int b = 0; b < bagNum; b++) {
+            bagIds[b] = sampleIds(new Random(ParallelToolbox.streamSeed(randomSeed, b, 0)));
+        }
+        firstBag = firstBags(bagIds);
+        weights = new int[bagNum];
+        for (int b = 0; b < bagNum; b++) {
+            weights[reuseDuplicateBags ? firstBag[b] : b]++;
+        }
+        bagResults = new ResultData[bagNum];
+
+        VoteAccumulator accumulator = parallelBagging
+                ? processParallel(bagIds, weights) : processSerial(bagIds, weights);
+        votes = accumulator.getVotes();
 //        vote(resultDataList);
-        vote2(resultDataList);
+        vote2(votes);
     }
 
-    public void sample(List<RawData> rawDataList) {
-        ArrayList<Integer> randomList = new ArrayList<>();
-        for (int i = 0; i < sampleNum; i++) {
-            randomList.add(i);
+    /**
+     * The number of distinct sample sets among the bags.
+     */
+    public int getDistinctBagNum() {
+        int distinctNum = 0;
+        for (int b = 0; b < firstBag.length; b++) {
+            if (firstBag[b] == b) distinctNum++;
         }
+        return distinctNum;
+    }
 
-        for (int i = 0; i < Parameters.sampleFrequency; i++) {
-            Collections.shuffle(randomList);
-            RawData tempRawData = new RawData();
-            RealMatrix tempRawMatrix = new BlockRealMatrix(Parameters.sampleSize, probeNum);
+    /**
+     * The first bag with the same sample set as every bag.
+     */
+    public int[] getFirstBags() {
+        return firstBag.clone();
+    }
 
-            for (int j = 0; j < Parameters.sampleSize; j++) {
-                tempRawMatrix.setRow(j, rawData.getDataMatrix().getRow(randomList.get(j)));
-            }
+    /**
+     * The number of votes every bag result is counted with, 0 for a bag whose set is reused.
+     */
+    public int[] getBagWeights() {
+        return weights.clone();
+    }
 
-            tempRawData.setData(tempRawMatrix);
-            rawDataList.add(tempRawData);
-        }
+    /**
+     * The SAIC result of bag b, null if the bag was not run.
+     */
+    public ResultData getBagResult(int b) {
+        return bagResults[b];
     }
 
-    public void vote(List<ResultData> resultDataList) {
-        int[] voteNum = new int[probeNum];
-        for (ResultData tempResultData : resultDataList) {
-            RangeSet<Integer> rangeSet = TreeRangeSet.create();
-            for (Region region : tempResultData.getRegionSet()) {
-                rangeSet.add(Range.closed(region.getStartId(), region.getEndId()));
-            }
+    /**
+     * The vote count of every probe, before smoothing.
+     */
+    public double[] getVotes() {
+        return votes.clone();
+    }
 
-            for (int i = 0; i < probeNum; i++) {
-                if (rangeSet.contains(i)) {
-                    voteNum[i]++;
-                }
+    /**
+     * The first bag with the same sample set as every bag, so the result of a repeated set can be
+     * reused. The key is the unordered set of sample ids; the seed policy is fixed for a forest,
+     * so reusing a set means taking the SAIC seed of its first bag as well.
+     */
+    private int[] firstBags(int[][] bagIds) {
+        int bagNum = bagIds.length;
+        int[] firstBag = new int[bagNum];
+        Map<BitSet, Integer> firstBagMap = new HashMap<>();
+        for (int b = 0; b < bagNum; b++) {
+            BitSet key = new BitSet(sampleNum);
+            for (int id : bagIds[b]) {
+                key.set(id);
             }
+            Integer first = firstBagMap.putIfAbsent(key, b);
+            firstBag[b] = first == null ? b : first;
         }
 
-        Set<Integer> idSet = new TreeSet<>();
-        for (int i = 0; i < probeNum; i++) {
-            if (enableDedugeInfo) System.out.println(i + "\t" + voteNum[i]);
-            if (voteNum[i] >= Parameters.voteThreshold) {
-                idSet.add(i);
-            }
-        }
+        int distinctNum = firstBagMap.size();
+        int repeatNum = bagNum - distinctNum;
+        m_log.info(String.format("bag results: %d distinct sample sets in %d bags, %d repeated bags %s (%.1f%%)",
+                distinctNum, bagNum, repeatNum, reuseDuplicateBags ? "reused" : "rerun with their own seeds",
+                100.0 * repeatNum / bagNum));
+        return firstBag;
+    }
 
-        List<Integer> idList = new ArrayList<>(idSet);
+    //the SAIC analysis of bag b with the seed of bag b, so a repeated sample set that is rerun gets a seed of its own
+    private ResultData runBag(int b, int[] sampleIds) {
+        AbstractSig saic = new SAIC();
+//        AbstractSig saic = new SAICEV();
+        if (saic instanceof SAIC) {
+            SAIC bagSaic = (SAIC) saic;
+            bagSaic.setSampleCache(sampleCache);
+            if (parallelBagging) bagSaic.setThreadNum(threadNum);
+            bagSaic.setRandomSeed(ParallelToolbox.streamSeed(randomSeed, b, 1));
+        }
+        ResultData tempResultData = new ResultData();
+        saic.preprocess(bagData(sampleIds));
+        saic.process(tempResultData);
+        return tempResultData;
+    }
 
-        int tempStart = idList.get(0), tempId = idList.get(0), id;
-        for (int i = 1; i < idList.size(); i++) {
-            id = idList.get(i);
-            if (id - tempId > 1) {
-                Region tempRegion = new Region();
-                tempRegion.setStartId(tempStart);
-                tempRegion.setEndId(tempId);
-                resultData.getRegionSet().add(tempRegion);
+    private VoteAccumulator processSerial(int[][] bagIds, int[] weights) {
+        VoteAccumulator votes = new VoteAccumulator(probeNum);
+        for (int b = 0; b < bagIds.length; b++) {
+            if (weights[b] == 0) continue;
+            ResultData tempResultData = runBag(b, bagIds[b]);
+            bagResults[b] = tempResultData;
+            if (tempResultData.getRegionSet().size() > 0)
+                votes.add(tempResultData, weights[b]);
+        }
+        return votes;
+    }
 
-                tempStart = id;
+    /**
+     * The bags run on the shared pool of threadNum threads, with the same seeds as the serial
+     * loop. Every worker thread counts its votes into one array of its own, so at most threadNum
+     * arrays exist; the counts are integers, so merging them afterwards in any order gives the
+     * same votes whatever the scheduling or threadNum.
+     */
+    private VoteAccumulator processParallel(int[][] bagIds, int[] weights) {
+        int bagNum = bagIds.length;
+        Map<Thread, VoteAccumulator> threadVotes = new ConcurrentHashMap<>();
+
+        ParallelToolbox.parallelFor(bagNum, threadNum, (from, to) -> {
+            for (int b = from; b < to; b++) {
+                if (weights[b] == 0) continue;
+                ResultData tempResultData = runBag(b, bagIds[b]);
+                bagResults[b] = tempResultData;
+                if (tempResultData.getRegionSet().size() > 0)
+                    threadVotes.computeIfAbsent(Thread.currentThread(), t -> new VoteAccumulator(probeNum))
+                            .add(tempResultData, weights[b]);
             }
-            tempId = id;
+        });
+
+        VoteAccumulator votes = new VoteAccumulator(probeNum);
+        for (VoteAccumulator other : threadVotes.values()) {
+            votes.addAll(other);
+        }
+        int hitNum = 0;
+        for (int b = 0; b < bagNum; b++) {
+            if (bagResults[b] != null && bagResults[b].getRegionSet().size() > 0) hitNum += weights[b];
+        }
+        m_log.info(String.format("parallel bagging: %d of %d bags found regions, %d threads",
+                hitNum, bagNum, threadNum));
+        return votes;
+    }
+
+    public void sample(List<RawData> rawDataList) {
+        Random random = new Random();
+        for (int i = 0; i < Parameters.sampleFrequency; i++) {
+            rawDataList.add(bagData(sampleIds(random)));
+        }
+    }
+
+    //the bag descriptor: sampleSize sample ids drawn without replacement, a partial Fisher-Yates shuffle
+    private int[] sampleIds(Random random) {
+        int[] ids = new int[sampleNum];
+        for (int i = 0; i < sampleNum; i++) {
+            ids[i] = i;
         }
-        if (tempId == idList.get(idList.size() - 1)) {
-            Region tempRegion = new Region();
-            tempRegion.setStartId(tempStart);
-            tempRegion.setEndId(tempId);
-            resultData.getRegionSet().add(tempRegion);
+        for (int i = 0; i < Parameters.sampleSize; i++) {
+            int k = i + random.nextInt(sampleNum - i);
+            int temp = ids[i];
+            ids[i] = ids[k];
+            ids[k] = temp;
         }
+        return Arrays.copyOf(ids, Parameters.sampleSize);
+    }
+
+    //the bag as a view of the original rows, no copy
+    private RawData bagData(int[] sampleIds) {
+        RawData tempRawData = new RawData();
+        tempRawData.setData(new RowSubsetView(rawData.getDataMatrix(), sampleIds));
+        return tempRawData;
+    }
+
+    public void vote(List<ResultData> resultDataList) {
+        double[] voteNum = countVotes(resultDataList);
+        addRegions(voteNum, Parameters.voteThreshold);
 
         StringBuilder sb = new StringBuilder();
         sb.append("\n\nthe fianl regions: ");
@@ -132,54 +279,28 @@ public class RandomForest {
     }
 
     public void vote2(List<ResultData> resultDataList) {
-        double[] voteNum = new double[probeNum];
-        for (ResultData tempResultData : resultDataList) {
-            RangeSet<Integer> rangeSet = TreeRangeSet.create();
-            for (Region region : tempResultData.getRegionSet()) {
-                rangeSet.add(Range.closed(region.getStartId(), region.getEndId()));
-            }
+        vote2(countVotes(resultDataList));
+    }
 
-            for (int i = 0; i < probeNum; i++) {
-                if (rangeSet.contains(i)) {
-                    voteNum[i]++;
-                }
-            }
+    private double[] countVotes(List<ResultData> resultDataList) {
+        VoteAccumulator votes = new VoteAccumulator(probeNum);
+        for (ResultData tempResultData : resultDataList) {
+            votes.add(tempResultData, 1);
         }
+        return votes.getVotes();
+    }
 
+    private void vote2(double[] voteNum) {
         //resultData.setRegionSet(getRegions(voteNum));
 
+        //只平滑一次, 阈值搜索和区域提取共用
         double[] data = BioToolbox.GaussianBlur(voteNum,3,1);
-        double thresh = getThreshold(voteNum);
+        double thresh = getThreshold(data);
         m_log.info(String.format("the thresh = %.3f", thresh));
-        Set<Integer> idSet = new TreeSet<>();
-        for (int i = 0; i < probeNum; i++) {
-            if (enableDedugeInfo) System.out.println(i + "\t" + voteNum[i]);
-            if (data[i] >= thresh) {
-                idSet.add(i);
-            }
-        }
-
-        List<Integer> idList = new ArrayList<>(idSet);
-
-        int tempStart = idList.get(0), tempId = idList.get(0), id;
-        for (int i = 1; i < idList.size(); i++) {
-            id = idList.get(i);
-            if (id - tempId > 1) {
-                Region tempRegion = new Region();
-                tempRegion.setStartId(tempStart);
-                tempRegion.setEndId(tempId);
-                resultData.getRegionSet().add(tempRegion);
-
-                tempStart = id;
-            }
-            tempId = id;
-        }
-        if (tempId == idList.get(idList.size() - 1)) {
-            Region tempRegion = new Region();
-            tempRegion.setStartId(tempStart);
-            tempRegion.setEndId(tempId);
-            resultData.getRegionSet().add(tempRegion);
+        if (enableDedugeInfo) {
+            for (int i = 0; i < probeNum; i++) System.out.println(i + "\t" + voteNum[i]);
         }
+        addRegions(data, thresh);
 
         StringBuilder sb = new StringBuilder();
         sb.append("\n\t\tthe fianl regions: ");
@@ -194,6 +315,23 @@ public class RandomForest {
 
     }
 
+    //every run of consecutive probes with data >= thresh becomes a region
+    private void addRegions(double[] data, double thresh) {
+        int tempStart = -1;
+        for (int i = 0; i <= probeNum; i++) {
+            boolean in = i < probeNum && data[i] >= thresh;
+            if (in && tempStart < 0) {
+                tempStart = i;
+            } else if (!in && tempStart >= 0) {
+                Region tempRegion = new Region();
+                tempRegion.setStartId(tempStart);
+                tempRegion.setEndId(i - 1);
+                resultData.getRegionSet().add(tempRegion);
+                tempStart = -1;
+            }
+        }
+    }
+
     private Set<Region> getRegions(double[] data){
         //double[] data = BioToolbox.GaussianBlur(voteNum,3,1);
 
@@ -231,9 +369,8 @@ public class RandomForest {
         return result;//如果有多个区域还有问题的
     }
 
-    private double getThreshold(double[] voteNum){
-        double[] data = BioToolbox.GaussianBlur(voteNum,3,1);
-
+    //data: the smoothed votes
+    private double getThreshold(double[] data){
         double[] diff = new double[data.length];
         for (int i = 1; i < data.length; i++){
             diff[i] = data[i] - data[i - 1];
@@ -275,5 +412,14 @@ public class RandomForest {
         static int sampleSize = 3;
         static int sampleFrequency = 100;
         static double voteThreshold = sampleFrequency / 2;
+        //parallel bagging: the bags run on a pool of threadNum threads; serial or parallel, every bag is
+        //seeded from randomSeed and the bag id
+        static boolean parallelBagging = false;
+        static int threadNum = Runtime.getRuntime().availableProcessors();
+        static long randomSeed = 20170601L;
+        //threshold every sample once per forest, the bags are assembled from the cached samples
+        static boolean cacheSamples = true;
+        //a repeated sample set reuses the result of its first bag, false reruns it with a seed of its own
+        static boolean reuseDuplicateBags = true;
     }
 }
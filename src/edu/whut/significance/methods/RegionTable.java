@@ -0,0 +1,256 @@
+package edu.whut.significance.methods;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.stat.StatUtils;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays table of the CNA regions of one Permute, indexed by cnaId.
+ * <p>
+ * Start, length, length class, U value, p value and SCA tag sit in primitive arrays, and
+ * the regions still taking part in the permutations are marked by an active flag instead
+ * of being removed from a list, so the U value, exclusion and p value passes are plain
+ * loops over the ids.
+ * <p>
+ * Every region belongs to a length class, and the permutations scan one window length per
+ * class. By default each distinct length is its own class. With a bucket ratio r > 1 the
+ * lengths are grouped geometrically: a class starts at its shortest length L and takes the
+ * lengths below max(L + 1, ceil(r * L)), and the longest length L' of the class is the
+ * window scanned for all of them. A region of length l is then judged by its block sum,
+ * i.e. by its U value scaled by l / L' (see {@link #getClassUValue}). The amp and del
+ * matrices hold values of one sign, so every window of length l lies inside a scanned
+ * window of length L' with at least its absolute sum, and the bucketed p value is never
+ * below the per-length one (up to the last L' - l start positions of the scan).
+ */
+class RegionTable {
+    private final int size;
+    private final int[] start;
+    private final int[] length;
+    private final int[] lengthClass;
+    private final double[] uValue;
+    private final double[] pValue;
+    private final int[] scaTag;
+    private final boolean[] active;
+    private int activeNum;
+    private final int probeNum;
+    private final int maxLength;
+    private final int distinctLengthNum;
+    private final int[] classLengths;
+    private final int[] lengthIndex;
+
+    /**
+     * @param starts the first probe of every region
+     * @param ends   the last probe of every region
+     */
+    RegionTable(int[] starts, int[] ends) {
+        this(starts, ends, 1.0);
+    }
+
+    /**
+     * @param starts      the first probe of every region
+     * @param ends        the last probe of every region
+     * @param bucketRatio the ratio of the geometric length classes, 1 for one class per length
+     */
+    RegionTable(int[] starts, int[] ends, double bucketRatio) {
+        size = starts.length;
+        start = Arrays.copyOf(starts, size);
+        length = new int[size];
+        lengthClass = new int[size];
+        uValue = new double[size];
+        pValue = new double[size];
+        scaTag = new int[size];
+        active = new boolean[size];
+        Arrays.fill(active, true);
+        activeNum = size;
+
+        int total = 0;
+        for (int id = 0; id < size; id++) {
+            length[id] = ends[id] - starts[id] + 1;
+            total += length[id];
+        }
+        probeNum = total;
+
+        //lookup from a length to its class
+        int[] uniqueLengths = Arrays.stream(length).distinct().sorted().toArray();
+        maxLength = uniqueLengths[uniqueLengths.length - 1];
+        distinctLengthNum = uniqueLengths.length;
+        if (bucketRatio > 1) {
+            lengthIndex = new int[maxLength + 1];
+            Arrays.fill(lengthIndex, -1);
+            int[] longest = new int[uniqueLengths.length];
+            int classNum = 0;
+            long classEnd = 0;
+            for (int l : uniqueLengths) {
+                if (l >= classEnd) {
+                    classNum++;
+                    classEnd = Math.max(l + 1L, (long) Math.ceil(l * bucketRatio));
+                }
+                longest[classNum - 1] = l;
+                lengthIndex[l] = classNum - 1;
+            }
+            classLengths = Arrays.copyOf(longest, classNum);
+        } else {
+            classLengths = uniqueLengths;
+            lengthIndex = PermuteKernel.lengthIndexTable(uniqueLengths);
+        }
+        for (int id = 0; id < size; id++) {
+            lengthClass[id] = lengthIndex[length[id]];
+        }
+    }
+
+    /**
+     * The sum of every row, computed once per matrix.
+     */
+    static double[] rowSums(RealMatrix probeMatrix) {
+        int rowNum = probeMatrix.getRowDimension();
+        double[] rowSums = new double[rowNum];
+        for (int i = 0; i < rowNum; i++) {
+            rowSums[i] = probeMatrix instanceof SparseProbeMatrix
+                    ? ((SparseProbeMatrix) probeMatrix).getRowSum(i)
+                    : StatUtils.sum(probeMatrix.getRow(i));
+        }
+        return rowSums;
+    }
+
+    /**
+     * Sets the U value of every region, |sum of the block| / (length * colNum).
+     * The cached row sums are added in probe order, exactly as the per-region loop did;
+     * a prefix sum difference would round differently and could break ties with the
+     * permuted max U values.
+     */
+    void calUScore(double[] rowSums, int colNum) {
+        for (int id = 0; id < size; id++) {
+            double sum = 0.0;
+            for (int i = start[id]; i < start[id] + length[id]; i++) {
+                sum += rowSums[i];
+            }
+            uValue[id] = Math.abs(sum / (length[id] * colNum));
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getStart(int id) {
+        return start[id];
+    }
+
+    int getEnd(int id) {
+        return start[id] + length[id] - 1;
+    }
+
+    int getLength(int id) {
+        return length[id];
+    }
+
+    int getLengthClass(int id) {
+        return lengthClass[id];
+    }
+
+    double getuValue(int id) {
+        return uValue[id];
+    }
+
+    /**
+     * The U value on the scale of the class window, the block sum / (class length * colNum),
+     * which is what the max U values of the class are compared with. Without bucketing it is
+     * the U value itself.
+     */
+    double getClassUValue(int id) {
+        int classLength = classLengths[lengthClass[id]];
+        if (classLength == length[id]) return uValue[id];
+        return uValue[id] * length[id] / classLength;
+    }
+
+    double getpValue(int id) {
+        return pValue[id];
+    }
+
+    void setpValue(int id, double value) {
+        pValue[id] = value;
+    }
+
+    int getSCATag(int id) {
+        return scaTag[id];
+    }
+
+    void setSCATag(int id, int tag) {
+        scaTag[id] = tag;
+    }
+
+    boolean isActive(int id) {
+        return active[id];
+    }
+
+    int getActiveNum() {
+        return activeNum;
+    }
+
+    void deactivate(int id) {
+        if (active[id]) {
+            active[id] = false;
+            activeNum--;
+        }
+    }
+
+    /**
+     * The active ids in ascending order.
+     */
+    int[] getActiveIds() {
+        int[] activeIds = new int[activeNum];
+        for (int id = 0, a = 0; id < size; id++) {
+            if (active[id]) activeIds[a++] = id;
+        }
+        return activeIds;
+    }
+
+    int getActiveProbeNum() {
+        int sum = 0;
+        for (int id = 0; id < size; id++) {
+            if (active[id]) sum += length[id];
+        }
+        return sum;
+    }
+
+    /**
+     * The number of probes of all regions.
+     */
+    int getProbeNum() {
+        return probeNum;
+    }
+
+    int getMaxLength() {
+        return maxLength;
+    }
+
+    int getDistinctLengthNum() {
+        return distinctLengthNum;
+    }
+
+    //the arrays below are shared, not copied
+    int[] getStarts() {
+        return start;
+    }
+
+    int[] getLengths() {
+        return length;
+    }
+
+    /**
+     * The window length scanned for every length class, ascending.
+     */
+    int[] getClassLengths() {
+        return classLengths;
+    }
+
+    int[] getLengthIndex() {
+        return lengthIndex;
+    }
+
+    String toString(int id) {
+        return String.format("CNARegion{ {start=%d, end=%d}, uValue = %.4f, pValue = %.4e }",
+                start[id], getEnd(id), uValue[id], pValue[id]);
+    }
+}
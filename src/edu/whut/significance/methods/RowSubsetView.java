@@ -0,0 +1,69 @@
+package edu.whut.significance.methods;
+
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Read-only view of some rows of a matrix, in the order of the given row ids.
+ * <p>
+ * The bags of RandomForest are samples by probes views of the original data matrix, so a bag
+ * is only its sample ids; SAIC reads it through its own transposed view and nothing is copied.
+ */
+class RowSubsetView extends AbstractRealMatrix {
+    private final RealMatrix source;
+    private final int[] rowIds;
+
+    /**
+     * @param source the matrix the rows are read from
+     * @param rowIds the source row of every view row, not copied
+     */
+    RowSubsetView(RealMatrix source, int[] rowIds) {
+        this.source = source;
+        this.rowIds = rowIds;
+    }
+
+    RealMatrix getSource() {
+        return source;
+    }
+
+    int[] getRowIds() {
+        return rowIds;
+    }
+
+    @Override
+    public int getRowDimension() {
+        return rowIds.length;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return source.getColumnDimension();
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        return source.getEntry(rowIds[row], column);
+    }
+
+    @Override
+    public double[] getRow(int row) {
+        return source.getRow(rowIds[row]);
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        throw new MathUnsupportedOperationException();
+    }
+
+    @Override
+    public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+        return new BlockRealMatrix(rowDimension, columnDimension);
+    }
+
+    @Override
+    public RealMatrix copy() {
+        return new BlockRealMatrix(getData());
+    }
+}
@@ -3,11 +3,8 @@ package edu.whut.significance.methods;
 import edu.whut.significance.dataset.RawData;
 import edu.whut.significance.dataset.Region;
 import edu.whut.significance.dataset.ResultData;
-import org.apache.commons.math3.linear.BlockRealMatrix;
+import edu.whut.significance.util.ParallelToolbox;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealMatrixChangingVisitor;
-import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 
 import java.util.*;
 import java.util.logging.Logger;
@@ -22,9 +19,94 @@ public class SAIC extends AbstractSig {
     public int colNum;
     private Logger m_log;
     private boolean enableDedugeInfo = false;
+    private int threadNum = Parameters.threadNum;
+    private int permuteNum = Parameters.permuteNum;
+    private long randomSeed = Parameters.randomSeed;
+    private boolean sequentialPermute = Parameters.sequentialPermute;
+    private boolean warmStartPermute = Parameters.warmStartPermute;
+    private int maxStaleRounds = Parameters.maxStaleRounds;
+    private boolean streamingPermute = Parameters.streamingPermute;
+    private boolean tailApproximation = Parameters.tailApproximation;
+    private boolean convolutionNull = Parameters.convolutionNull;
+    private int convolutionColumnBinNum = Parameters.convolutionColumnBinNum;
+    private double lengthBucketRatio = Parameters.lengthBucketRatio;
+    private boolean cyclicShiftNull = Parameters.cyclicShiftNull;
+    private boolean stratifiedPermute = Parameters.stratifiedPermute;
+    private boolean sharedPermute = Parameters.sharedPermute;
+    private RealMatrix dataMatrix;
+    private SampleCache sampleCache;
+    private List<CNAScore> cnaScores = new ArrayList<>();
+
+    public void setThreadNum(int threadNum) {
+        this.threadNum = threadNum;
+    }
+
+    public void setPermuteNum(int permuteNum) {
+        this.permuteNum = permuteNum;
+    }
+
+    public void setRandomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+    }
+
+    public void setSequentialPermute(boolean sequentialPermute) {
+        this.sequentialPermute = sequentialPermute;
+    }
+
+    public void setWarmStartPermute(boolean warmStartPermute) {
+        this.warmStartPermute = warmStartPermute;
+    }
+
+    public void setMaxStaleRounds(int maxStaleRounds) {
+        this.maxStaleRounds = maxStaleRounds;
+    }
+
+    public void setStreamingPermute(boolean streamingPermute) {
+        this.streamingPermute = streamingPermute;
+    }
+
+    public void setTailApproximation(boolean tailApproximation) {
+        this.tailApproximation = tailApproximation;
+    }
+
+    public void setConvolutionNull(boolean convolutionNull) {
+        this.convolutionNull = convolutionNull;
+    }
+
+    public void setConvolutionColumnBinNum(int convolutionColumnBinNum) {
+        this.convolutionColumnBinNum = convolutionColumnBinNum;
+    }
+
+    public void setLengthBucketRatio(double lengthBucketRatio) {
+        this.lengthBucketRatio = lengthBucketRatio;
+    }
+
+    public void setCyclicShiftNull(boolean cyclicShiftNull) {
+        this.cyclicShiftNull = cyclicShiftNull;
+    }
+
+    public void setStratifiedPermute(boolean stratifiedPermute) {
+        this.stratifiedPermute = stratifiedPermute;
+    }
+
+    public void setSharedPermute(boolean sharedPermute) {
+        this.sharedPermute = sharedPermute;
+    }
+
+    //һ process CNAԪļǰ
+    public List<CNAScore> getCNAScores() {
+        return cnaScores;
+    }
+
+    //RandomForest , ɭֵĸ bag 
+    void setSampleCache(SampleCache sampleCache) {
+        this.sampleCache = sampleCache;
+    }
 
     public void preprocess(RawData rawData) {
-        rawMatrix = rawData.getDataMatrix().transpose();
+        dataMatrix = rawData.getDataMatrix();
+        //ֻͼתþ
+        rawMatrix = ThresholdedView.transpose(rawData.getDataMatrix());
         rowNum = rawMatrix.getRowDimension();
         colNum = rawMatrix.getColumnDimension();
         m_log = Logger.getLogger("significanceAnalysis");
@@ -33,24 +115,103 @@ public class SAIC extends AbstractSig {
     }
 
     public void process(ResultData resultData) {
-        RealMatrix[] rawMatrixs = classify(rawMatrix);
+        if (stratifiedPermute && !cyclicShiftNull)
+            m_log.warning("stratified permutation only applies to the cyclic shift null, the block shuffle ignores it");
+
+        //bag ȱʧֱɻƴװ
+        RealMatrix[] rawMatrixs = sampleCache != null && sampleCache.covers(dataMatrix)
+                ? sampleCache.classify(dataMatrix) : classify(dataMatrix);
         RealMatrix ampRawMatrix = rawMatrixs[0];
         RealMatrix delRawMatrix = rawMatrixs[1];
 
         ResultData ampResultData = new ResultData();
         ResultData delResultData = new ResultData();
 
-        Permute ampPermute = new Permute(ampRawMatrix, ampResultData);
-        m_log.info(String.format("Staring to process amp : --------------->"));
-        ampPermute.processing();
-
-        Permute delPermute = new Permute(delRawMatrix, delResultData);
-        m_log.info(String.format("Staring to process del : --------------->"));
-        delPermute.processing();
+        Permute ampPermute = new Permute(ampRawMatrix, ampResultData, ParallelToolbox.streamSeed(randomSeed, 0));
+        Permute delPermute = new Permute(delRawMatrix, delResultData, ParallelToolbox.streamSeed(randomSeed, 1));
+        if (sharedPermute) {
+            m_log.info(String.format("Staring to process amp and del : --------------->"));
+            processShared(ampPermute, delPermute);
+        } else {
+            m_log.info(String.format("Staring to process amp : --------------->"));
+            ampPermute.processing();
+
+            m_log.info(String.format("Staring to process del : --------------->"));
+            delPermute.processing();
+        }
 
+        cnaScores = new ArrayList<>();
+        ampPermute.addScores(cnaScores);
+        delPermute.addScores(cnaScores);
         mergeResult(resultData, ampResultData, delResultData);
     }
 
+    //ȱʧ֧ͬʱ
+    //The CNA units of both branches are found at the same time. With the plain block shuffle the
+    //exclusion rounds then run in lockstep, and while both branches are still excluding every
+    //permutation draws one shuffle per column for both; the other null models run the branches
+    //side by side with their own draws.
+    public void processShared(Permute ampPermute, Permute delPermute) {
+        Permute[] branches = new Permute[]{ampPermute, delPermute};
+        boolean lockstep = !sequentialPermute && !warmStartPermute && !streamingPermute
+                && !convolutionNull && !cyclicShiftNull;
+        ParallelToolbox.parallelFor(branches.length, threadNum, (from, to) -> {
+            for (int b = from; b < to; b++) {
+                if (lockstep)
+                    branches[b].findCNAs();
+                else
+                    branches[b].processing();
+            }
+        });
+        if (!lockstep) return;
+
+        double[][] ampMaxUScore = ampPermute.getRegionNum() >= 2 ? ampPermute.prepareDetection() : null;
+        double[][] delMaxUScore = delPermute.getRegionNum() >= 2 ? delPermute.prepareDetection() : null;
+        boolean ampFlag = ampMaxUScore != null;
+        boolean delFlag = delMaxUScore != null;
+        int round = 0;
+        while (ampFlag || delFlag) {
+            if (ampFlag && delFlag)
+                permutePair(ampPermute, ampMaxUScore, delPermute, delMaxUScore, round++);
+            else if (ampFlag)
+                ampPermute.permute(ampMaxUScore);
+            else
+                delPermute.permute(delMaxUScore);
+            if (ampFlag) ampFlag = ampPermute.SCAExclude(ampMaxUScore);
+            if (delFlag) delFlag = delPermute.SCAExclude(delMaxUScore);
+        }
+        if (ampMaxUScore != null) ampPermute.finishDetection(ampMaxUScore);
+        if (delMaxUScore != null) delPermute.finishDetection(delMaxUScore);
+    }
+
+    //֧һֽ i ν (round, i) ߳޹
+    public void permutePair(Permute first, double[][] firstMaxUScore, Permute second, double[][] secondMaxUScore,
+                            int round) {
+        int[] firstIds = first.regionTable.getActiveIds();
+        int[] secondIds = second.regionTable.getActiveIds();
+        int firstProbeNum = first.permuteProbeSize;
+        int secondProbeNum = second.permuteProbeSize;
+        Arrays.fill(first.permuteCount, permuteNum);
+        Arrays.fill(second.permuteCount, permuteNum);
+
+        ParallelToolbox.parallelFor(permuteNum, threadNum, (from, to) -> {
+            int[] order = new int[Math.max(firstIds.length, secondIds.length)];
+            double[] firstSum = new double[firstProbeNum + 1];
+            double[] secondSum = new double[secondProbeNum + 1];
+            Random random = new Random();
+
+            for (int i = from; i < to; i++) {
+                random.setSeed(ParallelToolbox.streamSeed(randomSeed, 2, round, i));
+                PermuteKernel.permutePair(first.permuteKernel, firstIds, firstIds.length, firstSum, firstProbeNum,
+                        second.permuteKernel, secondIds, secondIds.length, secondSum, secondProbeNum, random, order);
+                PermuteKernel.accumulate(firstSum, firstProbeNum);
+                PermuteKernel.accumulate(secondSum, secondProbeNum);
+                first.findMaxUScore(firstSum, firstProbeNum, firstMaxUScore[i]);
+                second.findMaxUScore(secondSum, secondProbeNum, secondMaxUScore[i]);
+            }
+        });
+    }
+
     //ȱʧϲ
     public void mergeResult(ResultData resultData, ResultData ampResultData, ResultData delResultData) {
         Set<Integer> idSet = new HashSet<>();
@@ -104,45 +265,14 @@ public class SAIC extends AbstractSig {
 
     }
 
-    public RealMatrix[] classify(RealMatrix rawMatrix) {
+    //dataMatrix: x̽ԭʼݾ󣬰жȡ
+    public RealMatrix[] classify(RealMatrix dataMatrix) {
         GlobalParameters globalParameters = new GlobalParameters();
         double ampThreshold = globalParameters.getAmpThreshold();
         double delThreshold = globalParameters.getDelThreshold();
 
-        RealMatrix ampRawMatrix = rawMatrix.copy();
-//        for (int i = 0; i < rowNum; i++) {
-//            for (int j = 1; j < colNum; j++) {
-//                if (ampRawMatrix.getEntry(i, j) <= ampThreshold)
-//                    ampRawMatrix.setEntry(i, j, 0);
-//            }
-//        }
-        ampRawMatrix.walkInOptimizedOrder(new RealMatrixChangingVisitor() {
-
-            @Override
-            public void start(int rows, int columns, int startRow, int endRow, int startColumn, int endColumn) {
-
-            }
-
-            @Override
-            public double end() {
-                return 0;
-            }
-
-            @Override
-            public double visit(int row, int column, double value) {
-                return (value <= ampThreshold) ? 0 : value;
-            }
-        });
-
-        RealMatrix delRawMatrix = rawMatrix.copy();
-        for (int i = 0; i < rowNum; i++) {
-            for (int j = 0; j < colNum; j++) {
-                if (delRawMatrix.getEntry(i, j) >= delThreshold)
-                    delRawMatrix.setEntry(i, j, 0);
-            }
-        }
-
-        RealMatrix[] rawMatrixs = new RealMatrix[]{ampRawMatrix, delRawMatrix};
+        //һαԭʼݣõϡ洢ȱʧ
+        RealMatrix[] rawMatrixs = SparseProbeMatrix.classify(dataMatrix, ampThreshold, delThreshold);
         return rawMatrixs;
     }
 
@@ -151,45 +281,96 @@ public class SAIC extends AbstractSig {
         static int permuteNum = 1000;
         static double sigValueThreshold = 0.0476;
         static int minCNALength = 6;
+        static int threadNum = Runtime.getRuntime().availableProcessors();
+        static long randomSeed = 20170524L;
+        //sequential Monte Carlo: exceedances needed at the threshold and permutations per block
+        static boolean sequentialPermute = false;
+        static int sequentialExceedNum = 20;
+        static int sequentialBlockSize = 50;
+        //warm start: share of the null redrawn at least per round, and the exclusion rounds a row may lag behind
+        static boolean warmStartPermute = false;
+        static double minRefreshRatio = 0.1;
+        static int maxStaleRounds = 2;
+        //streaming: count exceedances per region instead of keeping maxUScore
+        static boolean streamingPermute = false;
+        //extreme value tail for calPScore, meant for about 200 permutations; fits rejected by the
+        //parametric bootstrap KS test at tailFitAlpha fall back to counting
+        static boolean tailApproximation = false;
+        static int tailMinSampleNum = 50;
+        static double tailFitAlpha = 0.05;
+        static int tailBootstrapNum = 200;
+        //semi-analytic null: FFT convolution of the column histograms instead of permutations,
+        //with convolutionColumnBinNum bins per column on average whatever the number of columns
+        static boolean convolutionNull = false;
+        static int convolutionColumnBinNum = 200;
+        //geometric length classes scanned once each, 1 keeps one class per distinct length
+        static double lengthBucketRatio = 1.0;
+        //rotate every column of the concatenated blocks instead of shuffling the blocks
+        static boolean cyclicShiftNull = false;
+        //stratified draws for the cyclic shift null: the shifts relative to column 0 are Latin hypercube
+        //samples, in stratumBatchNum independent batches that also give the standard error
+        static boolean stratifiedPermute = false;
+        static int stratumBatchNum = 10;
+        //amp and del at the same time: their exclusion rounds run in lockstep and share one shuffle per column
+        static boolean sharedPermute = false;
     }
 
     class Permute {
         //private RealMatrix oneRawMatrix;
-        private RealMatrix oneRawDataMatrix;
+        private SparseProbeMatrix oneRawDataMatrix;
         private ResultData oneResultData;
         private List<IdRegion> idRegionSet = new ArrayList<>();
-        private List<CNARegion> CNARegionSet = new ArrayList<>();
-        private Set<Integer> lengthSet = new TreeSet<>();
+        private RegionTable regionTable;
+        private int[] uniqueLengths;
         private int permuteProbeSize;
-
-        public Permute(RealMatrix oneRawMatrix, ResultData oneResultData) {
+        private long permuteSeed;
+        private int permuteRound;
+        private PermuteKernel permuteKernel;
+        private int permuteBudget;
+        private int[] permuteCount;
+        private int[] rowVersion;
+        private double[] standardError;
+        private int nullVersion;
+        private int nullProbeNum;
+        private boolean streamingNull;
+        private long[] exceedCount;
+        private ConvolutionNull analyticNull;
+        private boolean detected;
+
+        public Permute(RealMatrix oneRawMatrix, ResultData oneResultData, long permuteSeed) {
             //this.oneRawMatrix = oneRawMatrix;
-            this.oneRawDataMatrix = oneRawMatrix;
+            this.oneRawDataMatrix = SparseProbeMatrix.of(oneRawMatrix);
             this.oneResultData = oneResultData;
+            this.permuteSeed = permuteSeed;
         }
 
         public void processing() {
+            findCNAs();
+            if (getRegionNum() >= 2)
+                permuteDetection();
+        }
+
+        //CNAԪԪʱʾ
+        public void findCNAs() {
             getCNAs();
             if (enableDedugeInfo){
                 m_log.info(String.format("candidate Region = %d", idRegionSet.size()));
-                m_log.info(String.format("CNA region = %d", CNARegionSet.size()));
+                m_log.info(String.format("CNA region = %d", getRegionNum()));
             }
 
-            if (CNARegionSet.size() >= 2)
-                permuteDetection();
-            else
+            if (getRegionNum() < 2)
                 m_log.info("There is not enough CNA units to be permuted");
             //m_log.info("There is not enough CNA units to be permuted");
         }
 
         //óʼCNAԪı
         public void getCNAs() {
-            Set<Integer> candidateIdSet = new TreeSet<>();
+            BitSet candidateIdSet = new BitSet(rowNum);
             ArrayList<IdRegion> tempIdRegionSet = new ArrayList<>();
 
             getCandidateId(candidateIdSet);
 
-            if (candidateIdSet.size() > 0) { //Ӧöȫֲ
+            if (!candidateIdSet.isEmpty()) { //Ӧöȫֲ
                 getTempIdRegion(candidateIdSet, tempIdRegionSet);
                 getIdRegion(tempIdRegionSet);
                 regionMerge();
@@ -199,134 +380,173 @@ public class SAIC extends AbstractSig {
         }
 
         //òΪ0Idŵļ
-        public void getCandidateId(Set<Integer> candidateIdSet) {
+        public void getCandidateId(BitSet candidateIdSet) {
             for (int i = 0; i < rowNum; i++) {
-                for (int j = 0; j < colNum; j++) {
-                    if (oneRawDataMatrix.getEntry(i, j) != 0) {
-                        candidateIdSet.add(i);
-                        break;
-                    }
+                if (oneRawDataMatrix.getRowNnz(i) > 0) {
+                    candidateIdSet.set(i);
                 }
             }
         }
 
         //ȡȲС6ĵԪıż
-        public void getTempIdRegion(Set<Integer> candidateIdSet, List<IdRegion> tempIdRegionSet) {
+        public void getTempIdRegion(BitSet candidateIdSet, List<IdRegion> tempIdRegionSet) {
 
-            int count = candidateIdSet.size();
+            int count = candidateIdSet.cardinality();
             m_log.info(String.format("the number of candidate probes = %d", count));
 
-            int previous = -1;
-            List<Integer> IDArray = new LinkedList<>();
-            for (int current : candidateIdSet) {
-                if ((previous < 0) || (previous >= 0 && current - previous == 1)) {
-                    IDArray.add(current);
-                    previous = current;
-                } else {
-                    //Ͽ
-                    int begin = IDArray.get(0);
-                    int end = IDArray.get(IDArray.size() - 1);
-                    tempIdRegionSet.add(new IdRegion(begin, end));
-                    IDArray.clear();
-
-                    //µĿʼ
-                    IDArray.add(current);
-                    previous = -1;
+            int begin = candidateIdSet.nextSetBit(0);
+            int end = candidateIdSet.nextClearBit(begin) - 1;
+            for (int next = candidateIdSet.nextSetBit(end + 1); next >= 0; next = candidateIdSet.nextSetBit(end + 1)) {
+                //Ͽ
+                tempIdRegionSet.add(new IdRegion(begin, end));
+
+                //µĿʼľʵһ£ϿµԪĵڶ̽ǲ룬ʹ
+                begin = next;
+                end = candidateIdSet.nextClearBit(begin) - 1;
+                if (end == begin) {
+                    int second = candidateIdSet.nextSetBit(begin + 1);
+                    if (second >= 0)
+                        end = candidateIdSet.nextClearBit(second) - 1;
                 }
             }
-
-            int begin = IDArray.get(0);
-            int end = IDArray.get(IDArray.size() - 1);
             tempIdRegionSet.add(new IdRegion(begin, end));
-
-
         }
 
         //ûƤɭϵֶκCNAԪ
+        //The candidate runs are independent, so they are segmented in parallel and joined in order
         public void getIdRegion(List<IdRegion> tempIdRegionSet) {
-            int tempStart = 0, tempEnd = 0, tempId = 0;
-            double peaCorCoe = 0.0;
-            PearsonsCorrelation pearsonsCorrelation = new PearsonsCorrelation();
-            for (IdRegion tempIdRegion : tempIdRegionSet) {
-                tempStart = tempIdRegion.getStart();
-                tempEnd = tempIdRegion.getEnd();
-                for (tempId = tempStart; tempId < tempEnd; tempId++) {
-                    peaCorCoe = pearsonsCorrelation.correlation(oneRawDataMatrix.getRow(tempId),
-                            oneRawDataMatrix.getRow(tempId + 1));
-                    if (peaCorCoe < Parameters.pccThreshold) {
-                        if ((tempId - tempStart + 1) >= Parameters.minCNALength) {
-                            IdRegion validIdRegion = new IdRegion(tempStart, tempId);
-                            idRegionSet.add(validIdRegion);
-                        }
-                        tempStart = tempId + 1;
-                    }
+            List<List<IdRegion>> runRegionSets = new ArrayList<>(tempIdRegionSet.size());
+            for (int r = 0; r < tempIdRegionSet.size(); r++) {
+                runRegionSets.add(new ArrayList<>());
+            }
+
+            ParallelToolbox.parallelFor(tempIdRegionSet.size(), threadNum, (from, to) -> {
+                for (int r = from; r < to; r++) {
+                    segment(tempIdRegionSet.get(r), runRegionSets.get(r));
                 }
-                //һ̽뵥
-                if ((tempId == tempEnd) && ((tempId - tempStart + 1) >= Parameters.minCNALength)) {
-                    IdRegion validIdRegion = new IdRegion(tempStart, tempId);
-                    idRegionSet.add(validIdRegion);
+            });
+
+            for (List<IdRegion> runRegionSet : runRegionSets) {
+                idRegionSet.addAll(runRegionSet);
+            }
+        }
+
+        //̽ϵֵпһѡ
+        public void segment(IdRegion tempIdRegion, List<IdRegion> runRegionSet) {
+            int tempStart = tempIdRegion.getStart();
+            int tempEnd = tempIdRegion.getEnd();
+            int tempId;
+            double[] peaCorCoe = oneRawDataMatrix.adjacentCorrelations(tempStart, tempEnd);
+            for (tempId = tempStart; tempId < tempEnd; tempId++) {
+                if (peaCorCoe[tempId - tempIdRegion.getStart()] < Parameters.pccThreshold) {
+                    if ((tempId - tempStart + 1) >= Parameters.minCNALength) {
+                        IdRegion validIdRegion = new IdRegion(tempStart, tempId);
+                        runRegionSet.add(validIdRegion);
+                    }
+                    tempStart = tempId + 1;
                 }
             }
+            //һ̽뵥
+            if ((tempId - tempStart + 1) >= Parameters.minCNALength) {
+                IdRegion validIdRegion = new IdRegion(tempStart, tempId);
+                runRegionSet.add(validIdRegion);
+            }
         }
 
 
-        //֯CNAԪյCNAԪںϳCNARegionSetһlengthSet
+        //֯CNAԪյCNAԪںϳregionTableһó
         public void regionMerge() {
-            int cnaId = 0;
-            int cnaLength = 0;
-
             if (idRegionSet.size() > 0) {
-
+                int[] starts = new int[idRegionSet.size()];
+                int[] ends = new int[idRegionSet.size()];
+                int cnaId = 0;
                 for (IdRegion idRegion : idRegionSet) {
-                    cnaLength = idRegion.getEnd() - idRegion.getStart() + 1;
-
-                    CNARegion tempCNARegion = new CNARegion(cnaId, idRegion);
-                    CNARegionSet.add(tempCNARegion);
-                    lengthSet.add(cnaLength);
-                    permuteProbeSize += cnaLength;
+                    starts[cnaId] = idRegion.getStart();
+                    ends[cnaId] = idRegion.getEnd();
                     cnaId++;
                 }
+
+                regionTable = new RegionTable(starts, ends, lengthBucketRatio);
+                permuteProbeSize = regionTable.getProbeNum();
+                uniqueLengths = regionTable.getClassLengths();
+                if (lengthBucketRatio > 1)
+                    m_log.info(String.format("length bucketing: %d distinct lengths scanned as %d classes",
+                            regionTable.getDistinctLengthNum(), uniqueLengths.length));
             }
         }
 
+        public int getRegionNum() {
+            return regionTable == null ? 0 : regionTable.size();
+        }
+
         //Լ
         public void permuteDetection() {
-
-            double[][] maxUScore = new double[Parameters.permuteNum][lengthSet.size()];
-
-            calUScore();
+            double[][] maxUScore = prepareDetection();
 
             boolean loopFlag = true;
-            List<CNARegion> permuteCNARegions = new LinkedList<>(CNARegionSet);
             //int i = 0;
             while (loopFlag == true) {
-                permute(permuteCNARegions, maxUScore);
-                loopFlag = SCAExclude(maxUScore, permuteCNARegions);
+                if (convolutionNull)
+                    analyticNull = new ConvolutionNull(permuteKernel, regionTable.getActiveIds(),
+                            permuteProbeSize, uniqueLengths, convolutionColumnBinNum);
+                else if (sequentialPermute)
+                    permuteSequential(maxUScore);
+                else if (warmStartPermute)
+                    permuteIncremental(maxUScore, false);
+                else if (streamingNull)
+                    permuteStreaming();
+                else
+                    permute(maxUScore);
+                loopFlag = SCAExclude(maxUScore);
+                //һųȫµֲ
+                if (!loopFlag && !convolutionNull && !sequentialPermute && warmStartPermute
+                        && permuteIncremental(maxUScore, true))
+                    loopFlag = SCAExclude(maxUScore);
                 //System.out.println(i++);
             }
+            finishDetection(maxUScore);
+        }
+
+        //ǰ׼Uֵȡݿ飬Uֵ
+        public double[][] prepareDetection() {
+            //ʽͳʱmaxUScore
+            streamingNull = streamingPermute && !sequentialPermute && !warmStartPermute;
+            double[][] maxUScore = streamingNull || convolutionNull ? null : new double[permuteNum][uniqueLengths.length];
+            permuteCount = new int[uniqueLengths.length];
+            permuteBudget = sequentialPermute ? getSequentialBudget() : permuteNum;
+
+            calUScore();
+            buildPermuteKernel();
+            return maxUScore;
+        }
+
+        public void finishDetection(double[][] maxUScore) {
             calPScore(maxUScore);
             getResultData();
+            detected = true;
         }
 
-        //CNAԪUֵ
-        public void calUScore() {
-            int start, end;
-            int cnaLength;
-            double tempUScore;
-
-            for (CNARegion region : CNARegionSet) {
-                start = region.getIdRegion().getStart();
-                end = region.getIdRegion().getEnd();
-                cnaLength = region.getLength();
-                tempUScore = 0.0;
-                for (int i = start; i <= end; i++) {
-                    tempUScore += StatUtils.sum(oneRawDataMatrix.getRow(i));
-                }
-                tempUScore = Math.abs(tempUScore / (cnaLength * colNum));
-                region.setuValue(tempUScore);
+        //CNAԪĵ÷
+        public void addScores(List<CNAScore> scores) {
+            if (!detected) return;
+            for (int id = 0; id < regionTable.size(); id++) {
+                scores.add(new CNAScore(regionTable.getStart(id), regionTable.getEnd(id), regionTable.getuValue(id),
+                        regionTable.getpValue(id), permuteCount[regionTable.getLengthClass(id)],
+                        standardError == null ? Double.NaN : standardError[regionTable.getLengthClass(id)]));
             }
         }
 
+        //CNAԪUֵÿ̽кֻһ
+        public void calUScore() {
+            regionTable.calUScore(RegionTable.rowSums(oneRawDataMatrix), colNum);
+        }
+
+        //CNAԪݿһԳȡ
+        public void buildPermuteKernel() {
+            permuteKernel = new PermuteKernel(oneRawDataMatrix, regionTable.getStarts(), regionTable.getLengths());
+            permuteKernel.setCyclicShift(cyclicShiftNull);
+        }
+
         public double getSum(double[] nums) {
             double sum = 0;
             for (int i = 0; i < nums.length; i++) {
@@ -336,98 +556,364 @@ public class SAIC extends AbstractSig {
         }
 
         //CNAԪUֵ
-        public void permute(List<CNARegion> permuteCNARegions, double[][] maxUScore) {
-            List<Integer> idArray = new LinkedList<>();
-            for (int i = 0; i < permuteCNARegions.size(); i++) {
-                idArray.add(i);
-            }
-
-            for (int i = 0; i < Parameters.permuteNum; i++) {
-                //һνʼ
-                RealMatrix randomPermuteMatrix = new BlockRealMatrix(permuteProbeSize, colNum);
-                for (int j = 0; j < colNum; j++) {
-                    Collections.shuffle(idArray);
-                    double[] newCol = new double[permuteProbeSize];
-                    double[] orignalCol = oneRawDataMatrix.getColumn(j);
-
-                    int k = 0;
-                    for (int id : idArray) {
-                        CNARegion region = permuteCNARegions.get(id);
-                        int begin = region.getIdRegion().getStart();
-                        int len = region.getLength();
-                        System.arraycopy(orignalCol, begin, newCol, k, len);
-                        k += len;
+        //Every permutation owns one row of maxUScore and a random stream seeded by (round, i),
+        //so the permutations run in parallel and the result does not depend on threadNum
+        public void permute(double[][] maxUScore) {
+            int[] rows = new int[permuteNum];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+            permuteRows(regionTable.getActiveIds(), rows, maxUScore);
+        }
+
+        //maxUScoreָ
+        public void permuteRows(int[] activeIds, int[] rows, double[][] maxUScore) {
+            int round = permuteRound++;
+            double[][] strata = drawStrata(round);
+            int probeNum = permuteProbeSize;
+            int activeNum = activeIds.length;
+            Arrays.fill(permuteCount, permuteNum);
+
+            ParallelToolbox.parallelFor(rows.length, threadNum, (from, to) -> {
+                //ÿֻ߳һλ
+                int[] order = new int[activeNum];
+                double[] probeSum = new double[probeNum + 1];
+                Random random = new Random();
+
+                for (int r = from; r < to; r++) {
+                    int i = rows[r];
+                    //һνʼ
+                    drawPermutation(round, i, strata, random, activeIds, order, probeSum, probeNum);
+                    findMaxUScore(probeSum, probeNum, maxUScore[i]);
+                }
+            });
+        }
+
+        // i νΪǰ׺ֲͣʱʹõ i еķֲλ
+        private void drawPermutation(int round, int i, double[][] strata, Random random, int[] activeIds,
+                                     int[] order, double[] probeSum, int probeNum) {
+            random.setSeed(ParallelToolbox.streamSeed(permuteSeed, round, i));
+            permuteKernel.permute(activeIds, activeIds.length, random, order, probeSum, probeNum,
+                    strata == null ? null : strata[i]);
+            PermuteKernel.accumulate(probeSum, probeNum);
+        }
+
+        //ֲÿУÿԵ0еλڸǡóһ
+        //Permutation i belongs to batch i % stratumBatchNum, so every prefix of the permutations
+        //spreads evenly over the batches. Every row alone is still a uniform draw of the shifts.
+        private double[][] drawStrata(int round) {
+            if (!stratifiedPermute || !cyclicShiftNull) return null;
+            int batchNum = Parameters.stratumBatchNum;
+            double[][] strata = new double[permuteNum][colNum];
+            Random random = new Random(ParallelToolbox.streamSeed(permuteSeed, round, -1));
+            for (int b = 0; b < batchNum && b < permuteNum; b++) {
+                int batchSize = (permuteNum - b + batchNum - 1) / batchNum;
+                int[] stratum = new int[batchSize];
+                for (int j = 1; j < colNum; j++) {
+                    for (int k = 0; k < batchSize; k++) {
+                        stratum[k] = k;
+                    }
+                    shuffle(stratum, random);
+                    for (int k = 0; k < batchSize; k++) {
+                        strata[b + k * batchNum][j] = (stratum[k] + random.nextDouble()) / batchSize;
                     }
-                    randomPermuteMatrix.setColumn(j, newCol);
                 }
+            }
+            return strata;
+        }
 
-                findMaxUScore(randomPermuteMatrix, maxUScore[i]);
+        private void shuffle(int[] values, Random random) {
+            for (int i = values.length; i > 1; i--) {
+                int k = random.nextInt(i);
+                int temp = values[i - 1];
+                values[i - 1] = values[k];
+                values[k] = temp;
             }
         }
 
-        //Uֵڵ i ʵ
-        public void findMaxUScore(RealMatrix randomPermuteMatrix, double[] maxUScoreAti) {
-            double tempUScore;
-            int probeNum = randomPermuteMatrix.getRowDimension();
-            double[] probeSum = new double[probeNum + 1];
-            //ÿ̽ĺ
-            probeSum[0] = 0;
-            for (int i = 1; i < probeNum + 1; i++) {
-                probeSum[i] = probeSum[i - 1] + StatUtils.sum(randomPermuteMatrix.getRow(i - 1));
-            }
-
-            List<Integer> uniqueLengthSet = new ArrayList<>(lengthSet);
-            for (int length : uniqueLengthSet) {
-                int index = uniqueLengthSet.indexOf(length);
-                maxUScoreAti[index] = 0.0;
-
-                int endPos = probeNum - length + 1;
-                int front, back;
-
-                for (front = 0, back = front + length; back < endPos; front++, back++) {
-                    double regionSum = probeSum[back] - probeSum[front];
-                    tempUScore = Math.abs(regionSum) / (colNum * length);
-                    if (tempUScore > maxUScoreAti[index]) {
-                        maxUScoreAti[index] = tempUScore;
+        //ʽͳƣÿνֱӸCNAԪĳڴ뽻޹
+        //Within a length class the regions are sorted by U value, so a permutation only records how many
+        //of them its max U value exceeds; a suffix sum turns these records into per-region counts.
+        public void permuteStreaming() {
+            int round = permuteRound++;
+            double[][] strata = drawStrata(round);
+            int probeNum = permuteProbeSize;
+            int[] activeIds = regionTable.getActiveIds();
+            int activeNum = activeIds.length;
+            int lengthNum = uniqueLengths.length;
+            Arrays.fill(permuteCount, permuteNum);
+
+            //ÿڰUֵеCNAԪ
+            int[][] classRegions = new int[lengthNum][];
+            double[][] classUScore = new double[lengthNum][];
+            int[] classSize = new int[lengthNum];
+            for (int id = 0; id < regionTable.size(); id++) {
+                classSize[regionTable.getLengthClass(id)]++;
+            }
+            for (int l = 0; l < lengthNum; l++) {
+                classRegions[l] = new int[classSize[l]];
+                classUScore[l] = new double[classSize[l]];
+                classSize[l] = 0;
+            }
+            Integer[] sortedIds = new Integer[regionTable.size()];
+            for (int id = 0; id < sortedIds.length; id++) {
+                sortedIds[id] = id;
+            }
+            Arrays.sort(sortedIds, Comparator.comparingDouble(regionTable::getClassUValue));
+            for (int id : sortedIds) {
+                int l = regionTable.getLengthClass(id);
+                classRegions[l][classSize[l]] = id;
+                classUScore[l][classSize[l]++] = regionTable.getClassUValue(id);
+            }
+
+            long[][] exceedHits = new long[lengthNum][];
+            for (int l = 0; l < lengthNum; l++) {
+                exceedHits[l] = new long[classSize[l] + 1];
+            }
+
+            ParallelToolbox.parallelFor(permuteNum, threadNum, (from, to) -> {
+                int[] order = new int[activeNum];
+                double[] probeSum = new double[probeNum + 1];
+                double[] classMax = new double[lengthNum];
+                long[][] hits = new long[lengthNum][];
+                for (int l = 0; l < lengthNum; l++) {
+                    hits[l] = new long[classRegions[l].length + 1];
+                }
+                Random random = new Random();
+
+                for (int i = from; i < to; i++) {
+                    drawPermutation(round, i, strata, random, activeIds, order, probeSum, probeNum);
+                    findMaxUScore(probeSum, probeNum, classMax);
+                    for (int l = 0; l < lengthNum; l++) {
+                        hits[l][countBelow(classUScore[l], classMax[l])]++;
                     }
                 }
+
+                synchronized (exceedHits) {
+                    for (int l = 0; l < lengthNum; l++) {
+                        for (int k = 0; k < hits[l].length; k++) {
+                            exceedHits[l][k] += hits[l][k];
+                        }
+                    }
+                }
+            });
+
+            exceedCount = new long[regionTable.size()];
+            for (int l = 0; l < lengthNum; l++) {
+                long running = 0;
+                for (int k = classRegions[l].length - 1; k >= 0; k--) {
+                    running += exceedHits[l][k + 1];
+                    exceedCount[classRegions[l][k]] = running;
+                }
             }
         }
 
-        //ųSCAspermuteCNARegions
-        public boolean SCAExclude(double[][] maxUScore, List<CNARegion> permuteCNARegions) {
+        //ϸСvalueԪظ
+        private int countBelow(double[] sorted, double value) {
+            int low = 0, high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] < value) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        //ųSCAsֻɲֲ
+        //The share of rows redrawn follows the share of probes removed since the last round (at least
+        //minRefreshRatio), rows lagging more than maxStaleRounds exclusions are always redrawn, and
+        //refreshAll redraws every stale row. Returns whether any row was redrawn.
+        public boolean permuteIncremental(double[][] maxUScore, boolean refreshAll) {
+            int[] activeIds = regionTable.getActiveIds();
+            int activeProbeNum = regionTable.getActiveProbeNum();
+
+            double refreshRatio = 1.0;
+            if (rowVersion == null) {
+                rowVersion = new int[permuteNum];
+                Arrays.fill(rowVersion, -1);
+            } else if (activeProbeNum != nullProbeNum) {
+                nullVersion++;
+                refreshRatio = (double) (nullProbeNum - activeProbeNum) / nullProbeNum;
+            }
+            nullProbeNum = activeProbeNum;
+
+            //ɵпʼѡҪɵ
+            Integer[] staleRows = new Integer[permuteNum];
+            int staleNum = 0;
+            for (int j = 0; j < permuteNum; j++) {
+                if (rowVersion[j] != nullVersion) staleRows[staleNum++] = j;
+            }
+            Arrays.sort(staleRows, 0, staleNum, Comparator.comparingInt(j -> rowVersion[j]));
+
+            int target = staleNum;
+            if (!refreshAll) {
+                target = (int) Math.ceil(Math.max(refreshRatio, Parameters.minRefreshRatio) * permuteNum);
+                for (int r = 0; r < staleNum; r++) {
+                    int j = staleRows[r];
+                    if (rowVersion[j] < 0 || nullVersion - rowVersion[j] > maxStaleRounds) {
+                        target = Math.max(target, r + 1);
+                    }
+                }
+                target = Math.min(target, staleNum);
+            }
+
+            int[] rows = new int[target];
+            for (int r = 0; r < target; r++) {
+                rows[r] = staleRows[r];
+                rowVersion[rows[r]] = nullVersion;
+            }
+            Arrays.sort(rows);
+            if (target > 0) {
+                permuteRows(activeIds, rows, maxUScore);
+            }
+
+            if (enableDedugeInfo) {
+                m_log.info(String.format("warm start: %d of %d permutations redrawn, %d still stale",
+                        target, permuteNum, staleNum - target));
+            }
+            return target > 0;
+        }
+
+        //ؿ彻ÿCNAԪǷȷֹͣóĽ
+        //A region is decided once its exceedance count reaches the threshold bound (Besag-Clifford stop)
+        //or can no longer reach it within the budget, so the decisions equal those of the full budget.
+        public void permuteSequential(double[][] maxUScore) {
+            int round = permuteRound++;
+            double[][] strata = drawStrata(round);
+            int probeNum = permuteProbeSize;
+            int[] activeIds = regionTable.getActiveIds();
+            int activeNum = activeIds.length;
+            int lengthNum = uniqueLengths.length;
+            double bound = Parameters.sigValueThreshold * (permuteBudget + 1);
+
+            int[] exceedCount = new int[regionTable.size()];
+            boolean[] regionDecided = new boolean[regionTable.size()];
+            boolean[] classOpen = new boolean[lengthNum];
+            Arrays.fill(classOpen, true);
+            Arrays.fill(permuteCount, 0);
+
+            int drawn = 0;
+            int openNum = lengthNum;
+            while (openNum > 0 && drawn < permuteBudget) {
+                int blockStart = drawn;
+                int blockEnd = Math.min(permuteBudget, drawn + Parameters.sequentialBlockSize);
+                int[] classes = new int[openNum];
+                int[] lengths = new int[openNum];
+                for (int l = 0, c = 0; l < lengthNum; l++) {
+                    if (classOpen[l]) {
+                        classes[c] = l;
+                        lengths[c++] = uniqueLengths[l];
+                    }
+                }
+
+                ParallelToolbox.parallelFor(blockEnd - blockStart, threadNum, (from, to) -> {
+                    int[] order = new int[activeNum];
+                    double[] probeSum = new double[probeNum + 1];
+                    double[] classMax = new double[classes.length];
+                    Random random = new Random();
+
+                    for (int i = blockStart + from; i < blockStart + to; i++) {
+                        drawPermutation(round, i, strata, random, activeIds, order, probeSum, probeNum);
+                        PermuteKernel.scanMaxUScore(probeSum, probeNum, lengths, colNum, classMax);
+                        for (int c = 0; c < classes.length; c++) {
+                            maxUScore[i][classes[c]] = classMax[c];
+                        }
+                    }
+                });
+
+                for (int c : classes) {
+                    permuteCount[c] = blockEnd;
+                    classOpen[c] = false;
+                }
+                for (int id = 0; id < regionTable.size(); id++) {
+                    int index = regionTable.getLengthClass(id);
+                    if (regionDecided[id] || permuteCount[index] != blockEnd) continue;
+
+                    double uValue = regionTable.getClassUValue(id);
+                    for (int j = blockStart; j < blockEnd; j++) {
+                        if (maxUScore[j][index] > uValue) {
+                            exceedCount[id]++;
+                        }
+                    }
+                    if (exceedCount[id] >= bound || exceedCount[id] + (permuteBudget - blockEnd) < bound) {
+                        regionDecided[id] = true;
+                    } else {
+                        classOpen[index] = true;
+                    }
+                }
+
+                openNum = 0;
+                for (boolean open : classOpen) {
+                    if (open) openNum++;
+                }
+                drawn = blockEnd;
+            }
+
+            int stopped = 0;
+            for (int count : permuteCount) {
+                if (count < permuteBudget) stopped++;
+            }
+            m_log.info(String.format("sequential permutation: %d of %d drawn, %d of %d length classes stopped early",
+                    drawn, permuteBudget, stopped, lengthNum));
+        }
+
+        //ֵPֱֵȷ
+        public int getSequentialBudget() {
+            int budget = (int) Math.ceil(Parameters.sequentialExceedNum / Parameters.sigValueThreshold) - 1;
+            return Math.min(budget, permuteNum);
+        }
+
+        //һCNAԪԣǰֹͣĳʹBesag-Clifford c/n
+        public double calSigValue(double[][] maxUScore, int cnaId) {
+            int index = regionTable.getLengthClass(cnaId);
+            double uValue = regionTable.getClassUValue(cnaId);
+            if (convolutionNull) {
+                return analyticNull.upperTail(index, uValue);
+            }
+            int drawnNum = permuteCount[index];
+            double sigValue = 0.0;
+            if (streamingNull) {
+                sigValue = exceedCount[cnaId];
+            } else {
+                for (int j = 0; j < drawnNum; j++) {
+                    if (maxUScore[j][index] > uValue) {
+                        sigValue++;
+                    }
+                }
+            }
+            if (drawnNum < permuteBudget) {
+                return sigValue / drawnNum;
+            }
+            return sigValue / (drawnNum + 1);
+        }
+
+        //Uֵڵ i ʵ
+        public void findMaxUScore(double[] probeSum, int probeNum, double[] maxUScoreAti) {
+            PermuteKernel.scanMaxUScore(probeSum, probeNum, uniqueLengths, colNum, maxUScoreAti);
+        }
+
+        //ųSCAsregionTableеĻ
+        public boolean SCAExclude(double[][] maxUScore) {
             double sigValue;
-            int index;
             boolean flag = false;
-            int maxLen = Collections.max(lengthSet);//To make sure there are enough probes
-            int permuteNum = Parameters.permuteNum;
+            int maxLen = regionTable.getMaxLength();//To make sure there are enough probes
             double sigValueThreshold = Parameters.sigValueThreshold;
 
-            int permuteRegionCount = permuteCNARegions.size();
-            ArrayList<Integer> tempLengthSet = new ArrayList<>(lengthSet);
+            int permuteRegionCount = regionTable.getActiveNum();
 
             //ݳCNAԪUֵ
-            Iterator<CNARegion> itr = permuteCNARegions.iterator();
-            while (itr.hasNext()) {
-                CNARegion region = itr.next();
-                sigValue = 0.0;
-                index = tempLengthSet.indexOf(region.getLength());
+            for (int id = 0; id < regionTable.size(); id++) {
+                if (!regionTable.isActive(id)) continue;
 
                 //ۻUֵUֵø
-                for (int j = 0; j < permuteNum; j++) {
-                    if (maxUScore[j][index] > region.getuValue()) {
-                        sigValue++;
-                    }
-                }
-                sigValue /= (permuteNum + 1);
+                sigValue = calSigValue(maxUScore, id);
 
                 if (sigValue < sigValueThreshold) {
                     flag = true;
-                    if (permuteRegionCount - region.getLength() > maxLen)
-                        permuteProbeSize -= region.getLength();
-                    //permuteCNARegions.remove(i);
-                    itr.remove();
-                    permuteRegionCount = permuteCNARegions.size();
+                    if (permuteRegionCount - regionTable.getLength(id) > maxLen)
+                        permuteProbeSize -= regionTable.getLength(id);
+                    regionTable.deactivate(id);
+                    permuteRegionCount = regionTable.getActiveNum();
                 }
             }
             return flag;
@@ -436,144 +922,209 @@ public class SAIC extends AbstractSig {
         //ٴμCNAԪPֵ
         public void calPScore(double[][] maxUScore) {
             double pValue;
-            int index;
-            ArrayList<Integer> uniqueLengthSet = new ArrayList<>(lengthSet);
+            ExtremeValueTail[] tails = tailApproximation && !streamingNull && !convolutionNull ? fitTails(maxUScore) : null;
+            standardError = streamingNull || convolutionNull ? null : standardErrors(maxUScore);
 
             if (enableDedugeInfo){
                 m_log.info("<<<< all CNARegion >>>>");
             }
 
-            for (CNARegion region : CNARegionSet) {
-                pValue = 0.0;
-                index = uniqueLengthSet.indexOf(region.getLength());
+            for (int id = 0; id < regionTable.size(); id++) {
+                ExtremeValueTail tail = tails == null ? null : tails[regionTable.getLengthClass(id)];
+                if (tail != null)
+                    pValue = tail.upperTail(regionTable.getClassUValue(id));
+                else
+                    pValue = calSigValue(maxUScore, id);
+                regionTable.setpValue(id, pValue);
+                if (enableDedugeInfo) m_log.info("\t>>>>" + regionTable.toString(id));
+            }
+        }
 
-                for (int j = 0; j < Parameters.permuteNum; j++) {
-                    if (maxUScore[j][index] > region.getuValue()) {
-                        pValue++;
-                    }
+        //ÿUֵϹ弫ֲֵϲõĳΪnull˻ؾ
+        public ExtremeValueTail[] fitTails(double[][] maxUScore) {
+            ExtremeValueTail[] tails = new ExtremeValueTail[uniqueLengths.length];
+            int fitted = 0;
+            for (int l = 0; l < uniqueLengths.length; l++) {
+                ExtremeValueTail tail = null;
+                if (permuteCount[l] >= Parameters.tailMinSampleNum)
+                    tail = ExtremeValueTail.fit(maxUScore, l, permuteCount[l], Parameters.tailBootstrapNum,
+                            new Random(ParallelToolbox.streamSeed(permuteSeed, -2, l)));
+                if (enableDedugeInfo)
+                    m_log.info(String.format("length = %d, %s", uniqueLengths[l], tail));
+                if (tail != null && tail.isAccepted(Parameters.tailFitAlpha)) {
+                    tails[l] = tail;
+                    fitted++;
                 }
+            }
+            m_log.info(String.format("tail approximation: %d of %d length classes fitted, the others use empirical counts",
+                    fitted, uniqueLengths.length));
+            return tails;
+        }
 
-                pValue /= (Parameters.permuteNum + 1);
-                region.setpValue(pValue);
-                if (enableDedugeInfo) m_log.info("\t>>>>" + region.toString());
+        //ÿֵPֵ׼
+        //The tail probability p at the threshold-level max U value is estimated from the first
+        //permuteCount rows. Independent draws give the variance p(1 - p) / n; stratified draws take it
+        //from the spread of the batch estimates. The gain is the first variance over the achieved one.
+        //A warm-start refresh mixes rows of several rounds' strata, so it falls back to p(1 - p) / n.
+        public double[] standardErrors(double[][] maxUScore) {
+            int lengthNum = uniqueLengths.length;
+            int batchNum = Parameters.stratumBatchNum;
+            boolean batched = stratifiedPermute && cyclicShiftNull && !warmStartPermute;
+            double[] standardError = new double[lengthNum];
+            double worst = 0, gainSum = 0;
+            int gainNum = 0;
+            for (int l = 0; l < lengthNum; l++) {
+                int n = permuteCount[l];
+                if (n == 0) {
+                    standardError[l] = Double.NaN;
+                    continue;
+                }
+                double[] column = new double[n];
+                for (int j = 0; j < n; j++) {
+                    column[j] = maxUScore[j][l];
+                }
+                Arrays.sort(column);
+                int k = Math.min(n, (int) Math.ceil(Parameters.sigValueThreshold * (n + 1)));
+                double boundary = column[n - k];
+                double p = (double) k / n;
+                double variance = p * (1 - p) / n;
+                double independent = variance;
+
+                if (batched && batchNum > 1 && n >= 2 * batchNum) {
+                    double[] hits = new double[batchNum];
+                    int[] draws = new int[batchNum];
+                    for (int j = 0; j < n; j++) {
+                        draws[j % batchNum]++;
+                        if (maxUScore[j][l] >= boundary) hits[j % batchNum]++;
+                    }
+                    double squareSum = 0;
+                    for (int b = 0; b < batchNum; b++) {
+                        double deviation = hits[b] / draws[b] - p;
+                        squareSum += deviation * deviation;
+                    }
+                    variance = squareSum / (batchNum - 1) / batchNum;
+                }
+                standardError[l] = Math.sqrt(variance);
+                worst = Math.max(worst, standardError[l]);
+                if (variance > 0) {
+                    gainSum += independent / variance;
+                    gainNum++;
+                }
+                if (enableDedugeInfo)
+                    m_log.info(String.format("length = %d, permutations = %d, p = %.4f, standard error = %.4f, gain = %.2f",
+                            uniqueLengths[l], n, p, standardError[l], independent / variance));
             }
+            if (enableDedugeInfo)
+                m_log.info(String.format("permutation standard error at the threshold: at most %.4f over %d length classes, mean variance gain %.2f",
+                    worst, lengthNum, gainNum > 0 ? gainSum / gainNum : 1.0));
+            return standardError;
         }
 
-        //get ResultDatas and update the UScore,PScore and SCATag of the CNARegionSet
-        //ýCNARegionSetUֵPֵSCATag
+        //get ResultDatas and update the UScore,PScore and SCATag of the regionTable
+        //ýregionTableUֵPֵSCATag
         public void getResultData() {
             double pScoreThreshold = Parameters
                     .sigValueThreshold;
             //Set<Region> tempResultRegions = new HashSet<>();
 
-            for (CNARegion region : CNARegionSet) {
-                region.setSCATag(0);
-                if (region.getpValue() < pScoreThreshold) {
-                    region.setSCATag(1);
-                    oneResultData.addRegion(region.getIdRegion().getStart(), region.getIdRegion().getEnd());
-                    if (enableDedugeInfo) m_log.info(region.toString());
+            for (int id = 0; id < regionTable.size(); id++) {
+                regionTable.setSCATag(id, 0);
+                if (regionTable.getpValue(id) < pScoreThreshold) {
+                    regionTable.setSCATag(id, 1);
+                    oneResultData.addRegion(regionTable.getStart(id), regionTable.getEnd(id));
+                    if (enableDedugeInfo) m_log.info(regionTable.toString(id));
                 }
             }
         }
     }
 
-    class IdRegion {
-        private int start;
-        private int end;
-
-        public IdRegion() {
-        }
-
-        public IdRegion(int start, int end) {
+    /**
+     * The result of one CNA unit: its probes, U value, p value and the number of permutations
+     * drawn for its length class in the last round (0 for the convolution null), and the Monte Carlo
+     * standard error of the p value at the significance threshold for that class (NaN for the
+     * streaming and convolution nulls, which keep no permutation matrix).
+     */
+    public static class CNAScore {
+        private final int start;
+        private final int end;
+        private final double uValue;
+        private final double pValue;
+        private final int permuteNum;
+        private final double standardError;
+
+        CNAScore(int start, int end, double uValue, double pValue, int permuteNum, double standardError) {
             this.start = start;
             this.end = end;
+            this.uValue = uValue;
+            this.pValue = pValue;
+            this.permuteNum = permuteNum;
+            this.standardError = standardError;
         }
 
         public int getStart() {
             return start;
         }
 
-        public void setStart(int start) {
-            this.start = start;
-        }
-
         public int getEnd() {
             return end;
         }
 
-        public void setEnd(int end) {
-            this.end = end;
-        }
-
-        @Override
-        public String toString() {
-            return "{" +
-                    "start=" + start +
-                    ", end=" + end +
-                    '}';
-        }
-    }
-
-    class CNARegion {
-        private int cnaId;
-        private IdRegion idRegion;
-        //private int length;
-        private double uValue;
-        private double pValue;
-        private int SCATag;
-
-        public CNARegion(int id, IdRegion region) {
-            cnaId = id;
-            idRegion = region;
+        public double getuValue() {
+            return uValue;
         }
 
-        public int getCnaId() {
-            return cnaId;
+        public double getpValue() {
+            return pValue;
         }
 
-        public void setCnaId(int cnaId) {
-            this.cnaId = cnaId;
+        public int getPermuteNum() {
+            return permuteNum;
         }
 
-        public IdRegion getIdRegion() {
-            return idRegion;
+        public double getStandardError() {
+            return standardError;
         }
 
-        public void setIdRegion(IdRegion idRegion) {
-            this.idRegion = idRegion;
+        @Override
+        public String toString() {
+            return String.format("[%d, %d] u = %.4f p = %.4f n = %d", start, end, uValue, pValue, permuteNum);
         }
+    }
 
-        public int getLength() {
-            return idRegion.getEnd() - idRegion.getStart() + 1;
-        }
+    class IdRegion {
+        private int start;
+        private int end;
 
-        public double getuValue() {
-            return uValue;
+        public IdRegion() {
         }
 
-        public void setuValue(double uValue) {
-            this.uValue = uValue;
+        public IdRegion(int start, int end) {
+            this.start = start;
+            this.end = end;
         }
 
-        public double getpValue() {
-            return pValue;
+        public int getStart() {
+            return start;
         }
 
-        public void setpValue(double pValue) {
-            this.pValue = pValue;
+        public void setStart(int start) {
+            this.start = start;
         }
 
-        public int getSCATag() {
-            return SCATag;
+        public int getEnd() {
+            return end;
         }
 
-        public void setSCATag(int SCATag) {
-            this.SCATag = SCATag;
+        public void setEnd(int end) {
+            this.end = end;
         }
 
         @Override
         public String toString() {
-            return String.format("CNARegion{ %s, uValue = %.4f, pValue = %.4e }", idRegion, uValue, pValue);
+            return "{" +
+                    "start=" + start +
+                    ", end=" + end +
+                    '}';
         }
     }
 }
@@ -1,16 +1,11 @@
 package edu.whut.significance.methods;
 
-import com.google.common.primitives.Doubles;
 import edu.whut.significance.dataset.RawData;
 import edu.whut.significance.dataset.Region;
 import edu.whut.significance.dataset.ResultData;
-import org.apache.commons.math3.linear.BlockRealMatrix;
+import edu.whut.significance.util.ParallelToolbox;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealMatrixChangingVisitor;
-import org.apache.commons.math3.random.EmpiricalDistribution;
-import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.util.MathArrays;
 
 import java.util.*;
@@ -26,9 +21,25 @@ public class SAICEV extends AbstractSig {
     public int colNum;
     private Logger m_log;
     private boolean enableDedugeInfo = false;
+    private int threadNum = Parameters.threadNum;
+    private boolean cyclicShiftNull = Parameters.cyclicShiftNull;
+    private int maxGateAttempts = Parameters.maxGateAttempts;
+
+    public void setThreadNum(int threadNum) {
+        this.threadNum = threadNum;
+    }
+
+    public void setCyclicShiftNull(boolean cyclicShiftNull) {
+        this.cyclicShiftNull = cyclicShiftNull;
+    }
+
+    public void setMaxGateAttempts(int maxGateAttempts) {
+        this.maxGateAttempts = maxGateAttempts;
+    }
 
     public void preprocess(RawData rawData) {
-        rawMatrix = rawData.getDataMatrix().transpose();
+        //ֻͼתþ
+        rawMatrix = ThresholdedView.transpose(rawData.getDataMatrix());
         rowNum = rawMatrix.getRowDimension();
         colNum = rawMatrix.getColumnDimension();
         m_log = Logger.getLogger("significanceAnalysis");
@@ -113,38 +124,9 @@ public class SAICEV extends AbstractSig {
         double ampThreshold = globalParameters.getAmpThreshold();
         double delThreshold = globalParameters.getDelThreshold();
 
-        RealMatrix ampRawMatrix = rawMatrix.copy();
-//        for (int i = 0; i < rowNum; i++) {
-//            for (int j = 1; j < colNum; j++) {
-//                if (ampRawMatrix.getEntry(i, j) <= ampThreshold)
-//                    ampRawMatrix.setEntry(i, j, 0);
-//            }
-//        }
-        ampRawMatrix.walkInOptimizedOrder(new RealMatrixChangingVisitor() {
-
-            @Override
-            public void start(int rows, int columns, int startRow, int endRow, int startColumn, int endColumn) {
-
-            }
-
-            @Override
-            public double end() {
-                return 0;
-            }
-
-            @Override
-            public double visit(int row, int column, double value) {
-                return (value <= ampThreshold) ? 0 : value;
-            }
-        });
-
-        RealMatrix delRawMatrix = rawMatrix.copy();
-        for (int i = 0; i < rowNum; i++) {
-            for (int j = 0; j < colNum; j++) {
-                if (delRawMatrix.getEntry(i, j) >= delThreshold)
-                    delRawMatrix.setEntry(i, j, 0);
-            }
-        }
+        //ȱʧԭʼϵֵͼ
+        RealMatrix ampRawMatrix = ThresholdedView.amp(rawMatrix, ampThreshold);
+        RealMatrix delRawMatrix = ThresholdedView.del(rawMatrix, delThreshold);
 
         RealMatrix[] rawMatrixs = new RealMatrix[]{ampRawMatrix, delRawMatrix};
         return rawMatrixs;
@@ -155,6 +137,14 @@ public class SAICEV extends AbstractSig {
         static int permuteNum = 20;
         static double sigValueThreshold = 0.0476;
         static int minCNALength = 6;
+        //rotate every column of the concatenated blocks instead of shuffling the blocks
+        static boolean cyclicShiftNull = false;
+        static int threadNum = Runtime.getRuntime().availableProcessors();
+        //one permutation is split over the threads when there are fewer than two permutations per
+        //thread and at least innerMinProbeNum probes; otherwise every thread draws its own permutations
+        static int innerMinProbeNum = 1 << 15;
+        //draws per round after which the entropy gate lets every permutation through
+        static int maxGateAttempts = 1000;
     }
 
     class Permute {
@@ -162,9 +152,14 @@ public class SAICEV extends AbstractSig {
         private RealMatrix oneRawDataMatrix;
         private ResultData oneResultData;
         private List<IdRegion> idRegionSet = new ArrayList<>();
-        private List<CNARegion> CNARegionSet = new ArrayList<>();
-        private Set<Integer> lengthSet = new TreeSet<>();
+        private RegionTable regionTable;
+        private int[] uniqueLengths;
         private int permuteProbeSize;
+        private PermuteKernel permuteKernel;
+        private Random random = new Random();
+        private long gateDrawnNum;
+        private long gateAcceptedNum;
+        private int gateOpenedNum;
 
         public Permute(RealMatrix oneRawMatrix, ResultData oneResultData) {
             //this.oneRawMatrix = oneRawMatrix;
@@ -176,10 +171,10 @@ public class SAICEV extends AbstractSig {
             getCNAs();
             if (enableDedugeInfo){
                 m_log.info(String.format("candidate Region = %d", idRegionSet.size()));
-                m_log.info(String.format("CNA region = %d", CNARegionSet.size()));
+                m_log.info(String.format("CNA region = %d", getRegionNum()));
             }
 
-            if (CNARegionSet.size() >= 2)
+            if (getRegionNum() >= 2)
                 permuteDetection();
             else
                 m_log.info("There is not enough CNA units to be permuted");
@@ -188,12 +183,12 @@ public class SAICEV extends AbstractSig {
 
         //óʼCNAԪı
         public void getCNAs() {
-            Set<Integer> candidateIdSet = new TreeSet<>();
+            BitSet candidateIdSet = new BitSet(rowNum);
             ArrayList<IdRegion> tempIdRegionSet = new ArrayList<>();
 
             getCandidateId(candidateIdSet);
 
-            if (candidateIdSet.size() > 0) { //Ӧöȫֲ
+            if (!candidateIdSet.isEmpty()) { //Ӧöȫֲ
                 getTempIdRegion(candidateIdSet, tempIdRegionSet);
                 getIdRegion(tempIdRegionSet);
                 regionMerge();
@@ -203,11 +198,11 @@ public class SAICEV extends AbstractSig {
         }
 
         //òΪ0Idŵļ
-        public void getCandidateId(Set<Integer> candidateIdSet) {
+        public void getCandidateId(BitSet candidateIdSet) {
             for (int i = 0; i < rowNum; i++) {
                 for (int j = 0; j < colNum; j++) {
                     if (oneRawDataMatrix.getEntry(i, j) != 0) {
-                        candidateIdSet.add(i);
+                        candidateIdSet.set(i);
                         break;
                     }
                 }
@@ -215,35 +210,27 @@ public class SAICEV extends AbstractSig {
         }
 
         //ȡȲС6ĵԪıż
-        public void getTempIdRegion(Set<Integer> candidateIdSet, List<IdRegion> tempIdRegionSet) {
+        public void getTempIdRegion(BitSet candidateIdSet, List<IdRegion> tempIdRegionSet) {
 
-            int count = candidateIdSet.size();
+            int count = candidateIdSet.cardinality();
             m_log.info(String.format("the number of candidate probes = %d", count));
 
-            int previous = -1;
-            List<Integer> IDArray = new LinkedList<>();
-            for (int current : candidateIdSet) {
-                if ((previous < 0) || (previous >= 0 && current - previous == 1)) {
-                    IDArray.add(current);
-                    previous = current;
-                } else {
-                    //Ͽ
-                    int begin = IDArray.get(0);
-                    int end = IDArray.get(IDArray.size() - 1);
-                    tempIdRegionSet.add(new IdRegion(begin, end));
-                    IDArray.clear();
-
-                    //µĿʼ
-                    IDArray.add(current);
-                    previous = -1;
+            int begin = candidateIdSet.nextSetBit(0);
+            int end = candidateIdSet.nextClearBit(begin) - 1;
+            for (int next = candidateIdSet.nextSetBit(end + 1); next >= 0; next = candidateIdSet.nextSetBit(end + 1)) {
+                //Ͽ
+                tempIdRegionSet.add(new IdRegion(begin, end));
+
+                //µĿʼľʵһ£ϿµԪĵڶ̽ǲ룬ʹ
+                begin = next;
+                end = candidateIdSet.nextClearBit(begin) - 1;
+                if (end == begin) {
+                    int second = candidateIdSet.nextSetBit(begin + 1);
+                    if (second >= 0)
+                        end = candidateIdSet.nextClearBit(second) - 1;
                 }
             }
-
-            int begin = IDArray.get(0);
-            int end = IDArray.get(IDArray.size() - 1);
             tempIdRegionSet.add(new IdRegion(begin, end));
-
-
         }
 
         //ûƤɭϵֶκCNAԪ
@@ -274,61 +261,58 @@ public class SAICEV extends AbstractSig {
         }
 
 
-        //֯CNAԪյCNAԪںϳCNARegionSetһlengthSet
+        //֯CNAԪյCNAԪںϳregionTableһó
         public void regionMerge() {
-            int cnaId = 0;
-            int cnaLength = 0;
-
             if (idRegionSet.size() > 0) {
-
+                int[] starts = new int[idRegionSet.size()];
+                int[] ends = new int[idRegionSet.size()];
+                int cnaId = 0;
                 for (IdRegion idRegion : idRegionSet) {
-                    cnaLength = idRegion.getEnd() - idRegion.getStart() + 1;
-
-                    CNARegion tempCNARegion = new CNARegion(cnaId, idRegion);
-                    CNARegionSet.add(tempCNARegion);
-                    lengthSet.add(cnaLength);
-                    permuteProbeSize += cnaLength;
+                    starts[cnaId] = idRegion.getStart();
+                    ends[cnaId] = idRegion.getEnd();
                     cnaId++;
                 }
+
+                regionTable = new RegionTable(starts, ends);
+                permuteProbeSize = regionTable.getProbeNum();
+                uniqueLengths = regionTable.getClassLengths();
             }
         }
 
+        public int getRegionNum() {
+            return regionTable == null ? 0 : regionTable.size();
+        }
+
         //Լ
         public void permuteDetection() {
 
-            double[][] maxUScore = new double[Parameters.permuteNum][lengthSet.size()];
+            double[][] maxUScore = new double[Parameters.permuteNum][uniqueLengths.length];
 
             calUScore();
+            buildPermuteKernel();
 
             boolean loopFlag = true;
-            List<CNARegion> permuteCNARegions = new LinkedList<>(CNARegionSet);
             //int i = 0;
             while (loopFlag == true) {
-                permute(permuteCNARegions, maxUScore);
-                loopFlag = SCAExclude(maxUScore, permuteCNARegions);
+                permute(maxUScore);
+                loopFlag = SCAExclude(maxUScore);
                 //System.out.println(i++);
             }
+            m_log.info(String.format("entropy gate: %d of %d permutations accepted (%.1f%%), opened at the attempt cap in %d rounds",
+                    gateAcceptedNum, gateDrawnNum, 100.0 * gateAcceptedNum / gateDrawnNum, gateOpenedNum));
             calPScore(maxUScore);
             getResultData();
         }
 
-        //CNAԪUֵ
+        //CNAԪUֵÿ̽кֻһ
         public void calUScore() {
-            int start, end;
-            int cnaLength;
-            double tempUScore;
-
-            for (CNARegion region : CNARegionSet) {
-                start = region.getIdRegion().getStart();
-                end = region.getIdRegion().getEnd();
-                cnaLength = region.getLength();
-                tempUScore = 0.0;
-                for (int i = start; i <= end; i++) {
-                    tempUScore += StatUtils.sum(oneRawDataMatrix.getRow(i));
-                }
-                tempUScore = Math.abs(tempUScore / (cnaLength * colNum));
-                region.setuValue(tempUScore);
-            }
+            regionTable.calUScore(RegionTable.rowSums(oneRawDataMatrix), colNum);
+        }
+
+        //CNAԪݿһԳȡ
+        public void buildPermuteKernel() {
+            permuteKernel = new PermuteKernel(oneRawDataMatrix, regionTable.getStarts(), regionTable.getLengths());
+            permuteKernel.setCyclicShift(cyclicShiftNull);
         }
 
         public double getSum(double[] nums) {
@@ -340,110 +324,134 @@ public class SAICEV extends AbstractSig {
         }
 
         //CNAԪUֵ
-        public void permute(List<CNARegion> permuteCNARegions, double[][] maxUScore) {
-            List<Integer> idArray = new LinkedList<>();
-            for (int i = 0; i < permuteCNARegions.size(); i++) {
-                idArray.add(i);
-            }
-            int Count = idArray.size();
+        //A permutation is kept only if its entropy is below the mean entropy of the ones kept so far.
+        public void permute(double[][] maxUScore) {
+            if (threadNum > 1 && !splitPermutation(permuteProbeSize))
+                permuteBatch(maxUScore);
+            else
+                permuteSplit(maxUScore);
+        }
+
+        //ڲ㻹㲢Уٶ̽ʱÿνÿ̸߳ν
+        public boolean splitPermutation(int probeNum) {
+            return Parameters.permuteNum < 2 * threadNum && probeNum >= Parameters.innerMinProbeNum;
+        }
+
+        //νÿνװоֵUֵɨָ̣߳߳ʱԭĴн
+        public void permuteSplit(double[][] maxUScore) {
+            int probeNum = permuteProbeSize;
+            int[] activeIds = regionTable.getActiveIds();
+            int activeNum = activeIds.length;
+
+            //ֻвʱҪÿеĿ˳Ϳ㣬нֻһ˳
+            boolean split = threadNum > 1 && !cyclicShiftNull;
+            int[] columnOrder = new int[split ? Math.max(colNum * activeNum, activeNum) : activeNum];
+            int[] columnStart = split ? new int[colNum * (activeNum + 1)] : null;
+            double[] probeSum = new double[probeNum + 1];
             //for (int i = 0; i < Parameters.permuteNum; i++) {
             int i = 0;
-            List<Double> EntropyList = new ArrayList<>();
+            EntropyGate gate = new EntropyGate();
             while(i < Parameters.permuteNum){
                 //һνʼ
-                RealMatrix randomPermuteMatrix = new BlockRealMatrix(permuteProbeSize, colNum);
-                for (int j = 0; j < colNum; j++) {
-                    Collections.shuffle(idArray);
-                    List<Integer> selectedIDs = idArray.subList(0, Count);
-
-                    double[] newCol = new double[permuteProbeSize];
-                    double[] orignalCol = oneRawDataMatrix.getColumn(j);
-
-                    int k = 0;
-                    for (int id : selectedIDs) {
-                        CNARegion region = permuteCNARegions.get(id);
-                        int begin = region.getIdRegion().getStart();
-                        int len = region.getLength();
-                        System.arraycopy(orignalCol, begin, newCol, k, len);
-                        k += len;
-                    }
-                    randomPermuteMatrix.setColumn(j, newCol);
-                }
-//                int row = randomPermuteMatrix.getRowDimension();
-//                int col = randomPermuteMatrix.getColumnDimension();
-//                randomPermuteMatrix = randomPermuteMatrix.getSubMatrix(0,(int)(row * 0.6),0,col - 1);
-//
-                double entropy = calculateEntropy2(randomPermuteMatrix, 16);
-
+                permuteKernel.permuteSplit(activeIds, activeNum, random, columnOrder, columnStart, probeSum, probeNum, threadNum);
+                double entropy = calculateEntropy2(probeSum, probeNum, 16, threadNum);
 
-                if (EntropyList.size() == 0){
-                    EntropyList.add(entropy);
-                    findMaxUScore(randomPermuteMatrix, maxUScore, i);
+                if (gate.accept(entropy, i)){
+                    //ǰ׺ͱִУֿɨ벻ͬıUֵʱıȽ
+                    PermuteKernel.accumulate(probeSum, probeNum);
+                    PermuteKernel.scanMaxUScore(probeSum, probeNum, uniqueLengths, colNum, maxUScore[i], threadNum);
                     i++;
-                }else{
-                    double mean = StatUtils.mean(Doubles.toArray(EntropyList));
-                    if (enableDedugeInfo)
-                    System.out.println(String.format("entropy = %.6f, mean = %.6f, count = %d",entropy,mean,i));
-                    if (mean > entropy){
-                        EntropyList.add(entropy);
-                        findMaxUScore(randomPermuteMatrix, maxUScore, i);
-                        i++;
-                    }
                 }
-
             }
-        }
-
-        private double calculateEntropy(RealMatrix data, int binCount) {
+            gate.report();
+        }
+
+        //ÿÿ߳һνٰ˳Щ
+        //Every candidate has its own random stream seeded from the Permute stream in candidate order,
+        //and the candidates are accepted in that order, so the batch only decides who computes what.
+        public void permuteBatch(double[][] maxUScore) {
+            int probeNum = permuteProbeSize;
+            int[] activeIds = regionTable.getActiveIds();
+            int activeNum = activeIds.length;
+            int batchSize = threadNum;
+
+            long[] seeds = new long[batchSize];
+            double[] entropies = new double[batchSize];
+            double[][] probeSums = new double[batchSize][probeNum + 1];
+            int[] accepted = new int[batchSize];
+            int i = 0;
+            EntropyGate gate = new EntropyGate();
+            while (i < Parameters.permuteNum) {
+                for (int b = 0; b < batchSize; b++) {
+                    seeds[b] = random.nextLong();
+                }
+                ParallelToolbox.parallelFor(batchSize, threadNum, (from, to) -> {
+                    int[] order = new int[activeNum];
+                    Random candidateRandom = new Random();
+                    for (int b = from; b < to; b++) {
+                        candidateRandom.setSeed(seeds[b]);
+                        permuteKernel.permute(activeIds, activeNum, candidateRandom, order, probeSums[b], probeNum);
+                        entropies[b] = calculateEntropy2(probeSums[b], probeNum, 16, 1);
+                    }
+                });
 
-            EmpiricalDistribution ed = new EmpiricalDistribution(binCount);
-            int row = data.getRowDimension();
-            int col = data.getColumnDimension();
-            double[] temp = new double[row * col];
-            for (int i = 0; i < col; i++) {
-                double[] oneCol = data.getColumn(i);
-                System.arraycopy(oneCol, 0, temp, i * row, row);
+                int acceptedNum = 0;
+                for (int b = 0; b < batchSize && i + acceptedNum < Parameters.permuteNum; b++) {
+                    if (gate.accept(entropies[b], i + acceptedNum))
+                        accepted[acceptedNum++] = b;
+                }
+                int first = i;
+                ParallelToolbox.parallelFor(acceptedNum, threadNum, (from, to) -> {
+                    for (int k = from; k < to; k++) {
+                        double[] probeSum = probeSums[accepted[k]];
+                        PermuteKernel.accumulate(probeSum, probeNum);
+                        findMaxUScore(probeSum, probeNum, maxUScore, first + k);
+                    }
+                });
+                i += acceptedNum;
             }
+            gate.report();
+        }
 
-            ed.load(temp);
-            List<SummaryStatistics> binList = ed.getBinStats();
+        //ſأһνǽܣ֮صѽܽƽزŽ
+        //The mean is kept as a running sum. After maxGateAttempts draws in one round the gate lets every
+        //permutation through, so a round always ends, with a full set of permutations.
+        class EntropyGate {
+            private double entropySum;
+            private int acceptedNum;
+            private int drawnNum;
 
-            double[] bins = new double[binList.size()];
-            for (int i = 0; i < bins.length; i++) {
-                if (binList.get(i).getMean() != 0)
-                    bins[i] = binList.get(i).getN();
+            public boolean accept(double entropy, int count) {
+                drawnNum++;
+                if (acceptedNum > 0 && drawnNum <= maxGateAttempts) {
+                    double mean = entropySum / acceptedNum;
+                    if (enableDedugeInfo)
+                    System.out.println(String.format("entropy = %.6f, mean = %.6f, count = %d",entropy,mean,count));
+                    if (!(mean > entropy))
+                        return false;
+                }
+                entropySum += entropy;
+                acceptedNum++;
+                return true;
             }
 
-            int count = bins.length;
-            double[] values = MathArrays.normalizeArray(bins, 1);
-
-            double entropy2 = 0;
-            for (int i = 0; i < count; i++) {
-                if (values[i] > 0)
-                    entropy2 -= values[i] * Math.log(values[i]);
+            //ۼƱֵĽ
+            public void report() {
+                gateDrawnNum += drawnNum;
+                gateAcceptedNum += acceptedNum;
+                if (drawnNum > maxGateAttempts) {
+                    gateOpenedNum++;
+                    m_log.info(String.format("entropy gate opened after %d draws, %d permutations accepted before",
+                            maxGateAttempts, acceptedNum - (drawnNum - maxGateAttempts)));
+                }
+                if (enableDedugeInfo)
+                    m_log.info(String.format("entropy gate: %d of %d accepted", acceptedNum, drawnNum));
             }
-            double entropy = entropy2 / Math.log(binCount);
-            return entropy;
         }
 
-        private double calculateEntropy2(RealMatrix data, int binCount){
-            EmpiricalDistribution ed = new EmpiricalDistribution(binCount);
-            int row = data.getRowDimension();
-            int col = data.getColumnDimension();
-            double[] temp = new double[row];
-            for (int i = 0; i < row; i++) {
-                double[] oneRow = data.getRow(i);
-                temp[i] = StatUtils.mean(oneRow);
-            }
-
-            ed.load(temp);
-            List<SummaryStatistics> binList = ed.getBinStats();
-
-            double[] bins = new double[binList.size()];
-            for (int i = 0; i < bins.length; i++) {
-                if (binList.get(i).getMean() != 0)
-                    bins[i] = binList.get(i).getN();
-            }
+        //probeSum[1..row] holds the row sums of the permuted matrix
+        private double calculateEntropy2(double[] probeSum, int row, int binCount, int threadNum){
+            double[] bins = binRowMeans(probeSum, row, binCount, threadNum);
 
             int count = bins.length;
             double[] values = MathArrays.normalizeArray(bins, 1);
@@ -458,77 +466,79 @@ public class SAICEV extends AbstractSig {
         }
 
 
-        //Uֵڵ i ʵ
-        public void findMaxUScore(RealMatrix randomPermuteMatrix, double[][] maxUScore, int pos) {
-
-            double tempUScore;
-            int probeNum = randomPermuteMatrix.getRowDimension();
-            double[] probeSum = new double[probeNum + 1];
-            //ÿ̽ĺ
-            probeSum[0] = 0;
-            for (int i = 1; i < probeNum + 1; i++) {
-                probeSum[i] = probeSum[i - 1] + StatUtils.sum(randomPermuteMatrix.getRow(i - 1));
-            }
-
-            List<Integer> uniqueLengthSet = new ArrayList<>(lengthSet);
-//            int[][] posArray = new int[3][2];
-//            int step = (int) (probeNum / 6);
-//            for (int K = 0; K < 3; K++) {
-//                posArray[K][0] = (0 + K) * step;
-//                posArray[K][1] = (4 + K) * step;
-//            }
-//            posArray[2][1] = probeNum - 1;
-            for (int length : uniqueLengthSet) {
-
-                int index = uniqueLengthSet.indexOf(length);
-                //maxUScoreAti[index] = 0.0;
-
-                int endPos = probeNum - length + 1;
-                int front, back;
-
-                List<Double> uScoreList = new LinkedList<>();
-                for (front = 0, back = front + length; back < endPos; front++, back++) {
-                    double regionSum = probeSum[back] - probeSum[front];
-                    tempUScore = Math.abs(regionSum) / (colNum * length);
-//                    if (tempUScore > maxUScoreAti[index]) {
-//                        maxUScoreAti[index] = tempUScore;
-//                    }
-                    uScoreList.add(tempUScore);
+        //оֱֵͼEmpiricalDistributionķͬ鲢
+        //The row means are taken straight from the row sums. Those of one branch all have the same sign,
+        //so the mean of a bin is 0 exactly when all its values are 0; the chunks count the values and the
+        //non-zero values of every bin.
+        private double[] binRowMeans(double[] probeSum, int row, int binCount, int threadNum) {
+            double[] range = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            ParallelToolbox.parallelFor(row, threadNum, (from, to) -> {
+                double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+                for (int i = from; i < to; i++) {
+                    double mean = probeSum[i + 1] / colNum;
+                    if (mean < min) min = mean;
+                    if (mean > max) max = mean;
+                }
+                synchronized (range) {
+                    range[0] = Math.min(range[0], min);
+                    range[1] = Math.max(range[1], max);
+                }
+            });
+
+            double min = range[0];
+            double delta = (range[1] - min) / ((double) binCount);
+            long[] binN = new long[binCount];
+            long[] nonZeroN = new long[binCount];
+            ParallelToolbox.parallelFor(row, threadNum, (from, to) -> {
+                long[] n = new long[binCount];
+                long[] nonZero = new long[binCount];
+                for (int i = from; i < to; i++) {
+                    double mean = probeSum[i + 1] / colNum;
+                    int bin = Math.min(Math.max((int) Math.ceil((mean - min) / delta) - 1, 0), binCount - 1);
+                    n[bin]++;
+                    if (mean != 0) nonZero[bin]++;
+                }
+                synchronized (binN) {
+                    for (int b = 0; b < binCount; b++) {
+                        binN[b] += n[b];
+                        nonZeroN[b] += nonZero[b];
+                    }
                 }
-//                for (int K = 0; K < 3; K++) {
-//                    double[] maxUScoreAti = maxUScore[3*pos + K];
-//                    List<Double> temp = new LinkedList<>(uScoreList.subList(posArray[K][0], posArray[K][1] - 2 * length));
-//                    maxUScoreAti[index] = Collections.max(temp);
-//                }
-                double[] maxUScoreAti = maxUScore[pos];
-                List<Double> temp = new LinkedList<>(uScoreList);
-                maxUScoreAti[index] = Collections.max(temp);
+            });
+
+            double[] bins = new double[binCount];
+            for (int b = 0; b < binCount; b++) {
+                if (nonZeroN[b] > 0)
+                    bins[b] = binN[b];
             }
+            return bins;
+        }
 
+        //Uֵڵ i ʵ
+        public void findMaxUScore(double[] probeSum, int probeNum, double[][] maxUScore, int pos) {
+            PermuteKernel.scanMaxUScore(probeSum, probeNum, uniqueLengths, colNum, maxUScore[pos]);
         }
 
-        //ųSCAspermuteCNARegions
-        public boolean SCAExclude(double[][] maxUScore, List<CNARegion> permuteCNARegions) {
+        //ųSCAsregionTableеĻ
+        public boolean SCAExclude(double[][] maxUScore) {
             double sigValue;
             int index;
             boolean flag = false;
-            int maxLen = Collections.max(lengthSet);//To make sure there are enough probes
+            int maxLen = regionTable.getMaxLength();//To make sure there are enough probes
             int permuteNum = Parameters.permuteNum;
             double sigValueThreshold = Parameters.sigValueThreshold;
 
-            int permuteRegionCount = permuteCNARegions.size();
-            ArrayList<Integer> tempLengthSet = new ArrayList<>(lengthSet);
+            int permuteRegionCount = regionTable.getActiveNum();
 
             //ݳCNAԪUֵ
-            Iterator<CNARegion> itr = permuteCNARegions.iterator();
-            while (itr.hasNext()) {
-                CNARegion region = itr.next();
+            for (int id = 0; id < regionTable.size(); id++) {
+                if (!regionTable.isActive(id)) continue;
                 sigValue = 0.0;
-                index = tempLengthSet.indexOf(region.getLength());
+                index = regionTable.getLengthClass(id);
 
                 //ۻUֵUֵø
                 for (int j = 0; j < permuteNum; j++) {
-                    if (maxUScore[j][index] > region.getuValue()) {
+                    if (maxUScore[j][index] > regionTable.getuValue(id)) {
                         sigValue++;
                     }
                 }
@@ -536,11 +546,10 @@ public class SAICEV extends AbstractSig {
 
                 if (sigValue < sigValueThreshold) {
                     flag = true;
-                    if (permuteRegionCount - region.getLength() > maxLen)
-                        permuteProbeSize -= region.getLength();
-                    //permuteCNARegions.remove(i);
-                    itr.remove();
-                    permuteRegionCount = permuteCNARegions.size();
+                    if (permuteRegionCount - regionTable.getLength(id) > maxLen)
+                        permuteProbeSize -= regionTable.getLength(id);
+                    regionTable.deactivate(id);
+                    permuteRegionCount = regionTable.getActiveNum();
                 }
             }
             return flag;
@@ -550,41 +559,40 @@ public class SAICEV extends AbstractSig {
         public void calPScore(double[][] maxUScore) {
             double pValue;
             int index;
-            ArrayList<Integer> uniqueLengthSet = new ArrayList<>(lengthSet);
 
             if (enableDedugeInfo){
                 m_log.info("<<<< all CNARegion >>>>");
             }
 
-            for (CNARegion region : CNARegionSet) {
+            for (int id = 0; id < regionTable.size(); id++) {
                 pValue = 0.0;
-                index = uniqueLengthSet.indexOf(region.getLength());
+                index = regionTable.getLengthClass(id);
 
                 for (int j = 0; j < Parameters.permuteNum; j++) {
-                    if (maxUScore[j][index] > region.getuValue()) {
+                    if (maxUScore[j][index] > regionTable.getuValue(id)) {
                         pValue++;
                     }
                 }
 
                 pValue /= (Parameters.permuteNum + 1);
-                region.setpValue(pValue);
-                if (enableDedugeInfo) m_log.info("\t>>>>" + region.toString());
+                regionTable.setpValue(id, pValue);
+                if (enableDedugeInfo) m_log.info("\t>>>>" + regionTable.toString(id));
             }
         }
 
-        //get ResultDatas and update the UScore,PScore and SCATag of the CNARegionSet
-        //ýCNARegionSetUֵPֵSCATag
+        //get ResultDatas and update the UScore,PScore and SCATag of the regionTable
+        //ýregionTableUֵPֵSCATag
         public void getResultData() {
             double pScoreThreshold = Parameters
                     .sigValueThreshold;
             //Set<Region> tempResultRegions = new HashSet<>();
 
-            for (CNARegion region : CNARegionSet) {
-                region.setSCATag(0);
-                if (region.getpValue() < pScoreThreshold) {
-                    region.setSCATag(1);
-                    oneResultData.addRegion(region.getIdRegion().getStart(), region.getIdRegion().getEnd());
-                    if (enableDedugeInfo) m_log.info(region.toString());
+            for (int id = 0; id < regionTable.size(); id++) {
+                regionTable.setSCATag(id, 0);
+                if (regionTable.getpValue(id) < pScoreThreshold) {
+                    regionTable.setSCATag(id, 1);
+                    oneResultData.addRegion(regionTable.getStart(id), regionTable.getEnd(id));
+                    if (enableDedugeInfo) m_log.info(regionTable.toString(id));
                 }
             }
         }
@@ -626,67 +634,4 @@ public class SAICEV extends AbstractSig {
                     '}';
         }
     }
-
-    class CNARegion {
-        private int cnaId;
-        private IdRegion idRegion;
-        //private int length;
-        private double uValue;
-        private double pValue;
-        private int SCATag;
-
-        public CNARegion(int id, IdRegion region) {
-            cnaId = id;
-            idRegion = region;
-        }
-
-        public int getCnaId() {
-            return cnaId;
-        }
-
-        public void setCnaId(int cnaId) {
-            this.cnaId = cnaId;
-        }
-
-        public IdRegion getIdRegion() {
-            return idRegion;
-        }
-
-        public void setIdRegion(IdRegion idRegion) {
-            this.idRegion = idRegion;
-        }
-
-        public int getLength() {
-            return idRegion.getEnd() - idRegion.getStart() + 1;
-        }
-
-        public double getuValue() {
-            return uValue;
-        }
-
-        public void setuValue(double uValue) {
-            this.uValue = uValue;
-        }
-
-        public double getpValue() {
-            return pValue;
-        }
-
-        public void setpValue(double pValue) {
-            this.pValue = pValue;
-        }
-
-        public int getSCATag() {
-            return SCATag;
-        }
-
-        public void setSCATag(int SCATag) {
-            this.SCATag = SCATag;
-        }
-
-        @Override
-        public String toString() {
-            return String.format("CNARegion{ %s, uValue = %.4f, pValue = %.4e }", idRegion, uValue, pValue);
-        }
-    }
 }
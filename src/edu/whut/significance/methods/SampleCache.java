@@ -0,0 +1,98 @@
+package edu.whut.significance.methods;
+
+import edu.whut.significance.util.ParallelToolbox;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Arrays;
+
+/**
+ * The amp and del entries of every sample of a samples by probes matrix, thresholded once and
+ * shared by all the RandomForest bags drawn from it.
+ * <p>
+ * A sample keeps the ascending probe ids and the values of its entries above the amp and below
+ * the del threshold, which is its non-zero probe mask as well. The amp and del matrices of a bag
+ * are assembled from the pieces of its samples, equal to what {@link SAIC#classify} computes
+ * from the bag, so the candidate search, the row sums and the permutation kernels of the bag
+ * start from a matrix that no longer depends on re-reading and re-thresholding the data.
+ */
+class SampleCache {
+    private final RealMatrix dataMatrix;
+    private final int probeNum;
+    private final int[][] ampProbes;
+    private final double[][] ampValues;
+    private final int[][] delProbes;
+    private final double[][] delValues;
+
+    /**
+     * @param dataMatrix   the samples by probes matrix
+     * @param ampThreshold the amp threshold, the values > ampThreshold are kept
+     * @param delThreshold the del threshold, the values < delThreshold are kept
+     * @param threadNum    the number of worker threads
+     */
+    SampleCache(RealMatrix dataMatrix, double ampThreshold, double delThreshold, int threadNum) {
+        this.dataMatrix = dataMatrix;
+        this.probeNum = dataMatrix.getColumnDimension();
+        int sampleNum = dataMatrix.getRowDimension();
+        ampProbes = new int[sampleNum][];
+        ampValues = new double[sampleNum][];
+        delProbes = new int[sampleNum][];
+        delValues = new double[sampleNum][];
+
+        ParallelToolbox.parallelFor(sampleNum, threadNum, (from, to) -> {
+            int[] ampProbe = new int[probeNum];
+            double[] ampValue = new double[probeNum];
+            int[] delProbe = new int[probeNum];
+            double[] delValue = new double[probeNum];
+            for (int s = from; s < to; s++) {
+                double[] row = dataMatrix.getRow(s);
+                int ampNum = 0, delNum = 0;
+                for (int i = 0; i < probeNum; i++) {
+                    double v = row[i];
+                    if (v == 0) continue;
+                    //same tests as SparseProbeMatrix.classify
+                    if (!(v <= ampThreshold)) {
+                        ampProbe[ampNum] = i;
+                        ampValue[ampNum++] = v;
+                    }
+                    if (!(v >= delThreshold)) {
+                        delProbe[delNum] = i;
+                        delValue[delNum++] = v;
+                    }
+                }
+                ampProbes[s] = Arrays.copyOf(ampProbe, ampNum);
+                ampValues[s] = Arrays.copyOf(ampValue, ampNum);
+                delProbes[s] = Arrays.copyOf(delProbe, delNum);
+                delValues[s] = Arrays.copyOf(delValue, delNum);
+            }
+        });
+    }
+
+    /**
+     * Whether the matrix is a bag of the cached samples.
+     */
+    boolean covers(RealMatrix matrix) {
+        return matrix instanceof RowSubsetView && ((RowSubsetView) matrix).getSource() == dataMatrix;
+    }
+
+    /**
+     * The probes by samples amp and del matrices of a bag, see {@link #covers}.
+     *
+     * @return {amp, del}
+     */
+    SparseProbeMatrix[] classify(RealMatrix bagMatrix) {
+        int[] sampleIds = ((RowSubsetView) bagMatrix).getRowIds();
+        int bagSize = sampleIds.length;
+        int[][] ampRows = new int[bagSize][];
+        double[][] ampColumns = new double[bagSize][];
+        int[][] delRows = new int[bagSize][];
+        double[][] delColumns = new double[bagSize][];
+        for (int j = 0; j < bagSize; j++) {
+            ampRows[j] = ampProbes[sampleIds[j]];
+            ampColumns[j] = ampValues[sampleIds[j]];
+            delRows[j] = delProbes[sampleIds[j]];
+            delColumns[j] = delValues[sampleIds[j]];
+        }
+        return new SparseProbeMatrix[]{SparseProbeMatrix.ofColumns(probeNum, ampRows, ampColumns),
+                SparseProbeMatrix.ofColumns(probeNum, delRows, delColumns)};
+    }
+}
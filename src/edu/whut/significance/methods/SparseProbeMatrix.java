@@ -0,0 +1,268 @@
+package edu.whut.significance.methods;
+
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Read-only probes by samples matrix stored row-compressed (CSR): for every probe only
+ * the samples with a non-zero value are kept. After thresholding nearly all entries are
+ * zero, so the candidate search, the U values and the permutation kernel walk the stored
+ * entries only.
+ */
+class SparseProbeMatrix extends AbstractRealMatrix {
+    private final int rowNum;
+    private final int colNum;
+    private final int[] rowStart;
+    private final int[] colIndex;
+    private final double[] value;
+
+    private SparseProbeMatrix(int rowNum, int colNum, int[] rowStart, int[] colIndex, double[] value) {
+        this.rowNum = rowNum;
+        this.colNum = colNum;
+        this.rowStart = rowStart;
+        this.colIndex = colIndex;
+        this.value = value;
+    }
+
+    /**
+     * Compresses a probes by samples matrix, or returns it if it is compressed already.
+     */
+    static SparseProbeMatrix of(RealMatrix probeMatrix) {
+        if (probeMatrix instanceof SparseProbeMatrix) {
+            return (SparseProbeMatrix) probeMatrix;
+        }
+        Builder builder = new Builder(probeMatrix.getRowDimension(), probeMatrix.getColumnDimension());
+        for (int i = 0; i < builder.rowNum; i++) {
+            for (int j = 0; j < builder.colNum; j++) {
+                builder.add(j, probeMatrix.getEntry(i, j));
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Splits a samples by probes matrix, as RawData holds it, into its probes by samples amp
+     * and del parts: amp keeps the values > ampThreshold, del the values < delThreshold.
+     * The data are read sample row by sample row; every sample gives the ascending probe ids
+     * and values of its amp and del entries, which {@link #ofColumns} turns into the probe rows.
+     *
+     * @return {amp, del}
+     */
+    static SparseProbeMatrix[] classify(RealMatrix sampleMatrix, double ampThreshold, double delThreshold) {
+        int sampleNum = sampleMatrix.getRowDimension();
+        int probeNum = sampleMatrix.getColumnDimension();
+        int[][] ampProbes = new int[sampleNum][];
+        double[][] ampValues = new double[sampleNum][];
+        int[][] delProbes = new int[sampleNum][];
+        double[][] delValues = new double[sampleNum][];
+        int[] ampProbe = new int[probeNum];
+        double[] ampValue = new double[probeNum];
+        int[] delProbe = new int[probeNum];
+        double[] delValue = new double[probeNum];
+        for (int s = 0; s < sampleNum; s++) {
+            double[] row = sampleMatrix.getRow(s);
+            int ampNum = 0, delNum = 0;
+            for (int i = 0; i < probeNum; i++) {
+                double v = row[i];
+                if (v == 0) continue;
+                if (!(v <= ampThreshold)) {
+                    ampProbe[ampNum] = i;
+                    ampValue[ampNum++] = v;
+                }
+                if (!(v >= delThreshold)) {
+                    delProbe[delNum] = i;
+                    delValue[delNum++] = v;
+                }
+            }
+            ampProbes[s] = Arrays.copyOf(ampProbe, ampNum);
+            ampValues[s] = Arrays.copyOf(ampValue, ampNum);
+            delProbes[s] = Arrays.copyOf(delProbe, delNum);
+            delValues[s] = Arrays.copyOf(delValue, delNum);
+        }
+        return new SparseProbeMatrix[]{ofColumns(probeNum, ampProbes, ampValues),
+                ofColumns(probeNum, delProbes, delValues)};
+    }
+
+    /**
+     * Assembles a probes by samples matrix from its columns, each given by the ascending rows
+     * and the values of its non-zero entries. The rows come out as Builder would store them.
+     */
+    static SparseProbeMatrix ofColumns(int rowNum, int[][] columnRows, double[][] columnValues) {
+        int colNum = columnRows.length;
+        int[] rowStart = new int[rowNum + 1];
+        for (int[] rows : columnRows) {
+            for (int i : rows) {
+                rowStart[i + 1]++;
+            }
+        }
+        for (int i = 0; i < rowNum; i++) {
+            rowStart[i + 1] += rowStart[i];
+        }
+
+        int[] cursor = Arrays.copyOf(rowStart, rowNum);
+        int[] colIndex = new int[rowStart[rowNum]];
+        double[] value = new double[rowStart[rowNum]];
+        for (int j = 0; j < colNum; j++) {
+            int[] rows = columnRows[j];
+            double[] values = columnValues[j];
+            for (int e = 0; e < rows.length; e++) {
+                int k = cursor[rows[e]]++;
+                colIndex[k] = j;
+                value[k] = values[e];
+            }
+        }
+        return new SparseProbeMatrix(rowNum, colNum, rowStart, colIndex, value);
+    }
+
+    /**
+     * The number of stored (non-zero) entries of a row.
+     */
+    int getRowNnz(int row) {
+        return rowStart[row + 1] - rowStart[row];
+    }
+
+    /**
+     * The sum of a row, added in column order.
+     */
+    double getRowSum(int row) {
+        double sum = 0;
+        for (int e = rowStart[row]; e < rowStart[row + 1]; e++) {
+            sum += value[e];
+        }
+        return sum;
+    }
+
+    /**
+     * Pearson correlations of the adjacent rows from .. to: r[i] belongs to the rows from + i
+     * and from + i + 1. Every row is centred and normed once; a constant row gives NaN,
+     * as PearsonsCorrelation does.
+     */
+    double[] adjacentCorrelations(int from, int to) {
+        double[] r = new double[to - from];
+        double[] previous = new double[colNum];
+        double[] current = new double[colNum];
+        double previousNorm = centre(from, previous);
+        for (int i = from + 1; i <= to; i++) {
+            double norm = centre(i, current);
+            double dot = 0;
+            for (int j = 0; j < colNum; j++) {
+                dot += previous[j] * current[j];
+            }
+            r[i - from - 1] = dot / (previousNorm * norm);
+
+            double[] temp = previous;
+            previous = current;
+            current = temp;
+            previousNorm = norm;
+        }
+        return r;
+    }
+
+    //writes the centred row into out and returns its norm
+    private double centre(int row, double[] out) {
+        double mean = getRowSum(row) / colNum;
+        Arrays.fill(out, -mean);
+        for (int e = rowStart[row]; e < rowStart[row + 1]; e++) {
+            out[colIndex[e]] = value[e] - mean;
+        }
+        double norm = 0;
+        for (int j = 0; j < colNum; j++) {
+            norm += out[j] * out[j];
+        }
+        return Math.sqrt(norm);
+    }
+
+    /**
+     * Calls the visitor for the stored entries of a row, in column order.
+     */
+    void walkRow(int row, EntryVisitor visitor) {
+        for (int e = rowStart[row]; e < rowStart[row + 1]; e++) {
+            visitor.visit(colIndex[e], value[e]);
+        }
+    }
+
+    interface EntryVisitor {
+        void visit(int column, double value);
+    }
+
+    @Override
+    public int getRowDimension() {
+        return rowNum;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return colNum;
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        int e = Arrays.binarySearch(colIndex, rowStart[row], rowStart[row + 1], column);
+        return e >= 0 ? value[e] : 0;
+    }
+
+    @Override
+    public double[] getRow(int row) {
+        double[] out = new double[colNum];
+        for (int e = rowStart[row]; e < rowStart[row + 1]; e++) {
+            out[colIndex[e]] = value[e];
+        }
+        return out;
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        throw new MathUnsupportedOperationException();
+    }
+
+    @Override
+    public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+        return new BlockRealMatrix(rowDimension, columnDimension);
+    }
+
+    @Override
+    public RealMatrix copy() {
+        return new BlockRealMatrix(getData());
+    }
+
+    //row by row construction with growing entry arrays
+    private static class Builder {
+        private final int rowNum;
+        private final int colNum;
+        private final int[] rowStart;
+        private int[] colIndex = new int[16];
+        private double[] value = new double[16];
+        private int size;
+        private int row;
+
+        Builder(int rowNum, int colNum) {
+            this.rowNum = rowNum;
+            this.colNum = colNum;
+            rowStart = new int[rowNum + 1];
+        }
+
+        void add(int column, double v) {
+            if (v == 0) return;
+            if (size == value.length) {
+                colIndex = Arrays.copyOf(colIndex, size << 1);
+                value = Arrays.copyOf(value, size << 1);
+            }
+            colIndex[size] = column;
+            value[size++] = v;
+        }
+
+        void endRow() {
+            rowStart[++row] = size;
+        }
+
+        SparseProbeMatrix build() {
+            return new SparseProbeMatrix(rowNum, colNum, rowStart,
+                    Arrays.copyOf(colIndex, size), Arrays.copyOf(value, size));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package edu.whut.significance.methods;
+
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Read-only probes by samples view of a data matrix, with the values inside
+ * [zeroFrom, zeroTo] read as 0.
+ * <p>
+ * SAIC and SAICEV read the samples by probes matrix of RawData through these views,
+ * so neither the transpose nor the amp and del thresholded matrices are ever copied.
+ */
+class ThresholdedView extends AbstractRealMatrix {
+    private final RealMatrix source;
+    private final boolean transposed;
+    private final double zeroFrom;
+    private final double zeroTo;
+
+    private ThresholdedView(RealMatrix source, boolean transposed, double zeroFrom, double zeroTo) {
+        this.source = source;
+        this.transposed = transposed;
+        this.zeroFrom = zeroFrom;
+        this.zeroTo = zeroTo;
+    }
+
+    /**
+     * @param dataMatrix the samples by probes matrix
+     * @return the probes by samples view of it
+     */
+    static ThresholdedView transpose(RealMatrix dataMatrix) {
+        return new ThresholdedView(dataMatrix, true, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * The amp view, values <= ampThreshold read as 0.
+     */
+    static ThresholdedView amp(RealMatrix probeMatrix, double ampThreshold) {
+        return threshold(probeMatrix, Double.NEGATIVE_INFINITY, ampThreshold);
+    }
+
+    /**
+     * The del view, values >= delThreshold read as 0.
+     */
+    static ThresholdedView del(RealMatrix probeMatrix, double delThreshold) {
+        return threshold(probeMatrix, delThreshold, Double.POSITIVE_INFINITY);
+    }
+
+    //an unthresholded transpose view is unwrapped, so the entries go straight to the data
+    private static ThresholdedView threshold(RealMatrix probeMatrix, double zeroFrom, double zeroTo) {
+        if (probeMatrix instanceof ThresholdedView) {
+            ThresholdedView view = (ThresholdedView) probeMatrix;
+            if (view.zeroFrom > view.zeroTo) {
+                return new ThresholdedView(view.source, view.transposed, zeroFrom, zeroTo);
+            }
+        }
+        return new ThresholdedView(probeMatrix, false, zeroFrom, zeroTo);
+    }
+
+    @Override
+    public int getRowDimension() {
+        return transposed ? source.getColumnDimension() : source.getRowDimension();
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return transposed ? source.getRowDimension() : source.getColumnDimension();
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        double value = transposed ? source.getEntry(column, row) : source.getEntry(row, column);
+        return (value >= zeroFrom && value <= zeroTo) ? 0 : value;
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        throw new MathUnsupportedOperationException();
+    }
+
+    @Override
+    public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+        return new BlockRealMatrix(rowDimension, columnDimension);
+    }
+
+    @Override
+    public RealMatrix copy() {
+        return new BlockRealMatrix(getData());
+    }
+}
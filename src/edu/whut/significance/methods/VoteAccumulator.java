@@ -0,0 +1,72 @@
+package edu.whut.significance.methods;
+
+import edu.whut.significance.dataset.Region;
+import edu.whut.significance.dataset.ResultData;
+
+import java.util.Arrays;
+
+/**
+ * Per-probe vote counts of the RandomForest bags, kept as a difference array.
+ * <p>
+ * A bag adds its weight at the first probe of every region and takes it off after the last
+ * one, so a bag costs O(regions log regions) instead of a range lookup per probe, and the
+ * votes come out of one prefix sum pass. The regions of a bag are merged first: a probe
+ * covered by several regions of the same bag gets one vote, as with a RangeSet.
+ */
+public class VoteAccumulator {
+    private final int probeNum;
+    private final int[] diff;
+
+    public VoteAccumulator(int probeNum) {
+        this.probeNum = probeNum;
+        this.diff = new int[probeNum + 1];
+    }
+
+    /**
+     * Adds weight votes for every probe covered by a region of the bag.
+     */
+    public void add(ResultData bagResult, int weight) {
+        int regionNum = bagResult.getRegionSet().size();
+        long[] ranges = new long[regionNum];
+        int k = 0;
+        for (Region region : bagResult.getRegionSet()) {
+            int start = Math.max(0, region.getStartId());
+            int end = Math.min(probeNum - 1, region.getEndId());
+            if (start <= end) ranges[k++] = ((long) start << 32) | end;
+        }
+        Arrays.sort(ranges, 0, k);
+
+        //the first probe not yet voted for by this bag
+        int covered = 0;
+        for (int r = 0; r < k; r++) {
+            int start = Math.max(covered, (int) (ranges[r] >>> 32));
+            int end = (int) ranges[r];
+            if (start > end) continue;
+            diff[start] += weight;
+            diff[end + 1] -= weight;
+            covered = end + 1;
+        }
+    }
+
+    /**
+     * Adds the votes of another accumulator, e.g. the one of another thread.
+     */
+    public void addAll(VoteAccumulator other) {
+        for (int i = 0; i <= probeNum; i++) {
+            diff[i] += other.diff[i];
+        }
+    }
+
+    /**
+     * The vote count of every probe.
+     */
+    public double[] getVotes() {
+        double[] votes = new double[probeNum];
+        int sum = 0;
+        for (int i = 0; i < probeNum; i++) {
+            sum += diff[i];
+            votes[i] = sum;
+        }
+        return votes;
+    }
+}
@@ -0,0 +1,85 @@
+package edu.whut.significance.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+/**
+ * Shared fork-join helpers for the permutation based methods.
+ */
+public class ParallelToolbox {
+    private static final Map<Integer, ForkJoinPool> poolMap = new HashMap<>();
+
+    /**
+     * A task working on the index range [from, to).
+     */
+    public interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Gets the shared pool with the given parallelism.
+     *
+     * @param threadNum the number of worker threads
+     * @return the pool
+     */
+    public static synchronized ForkJoinPool getPool(int threadNum) {
+        ForkJoinPool pool = poolMap.get(threadNum);
+        if (pool == null) {
+            pool = new ForkJoinPool(threadNum);
+            poolMap.put(threadNum, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Runs the task over [0, n) split into contiguous chunks.
+     * When called from a pool worker the chunks are forked into the current pool,
+     * so nested calls never create more threads than the outer pool has.
+     *
+     * @param n         the size of the index range
+     * @param threadNum the number of worker threads, 1 means serial
+     * @param task      the task
+     */
+    public static void parallelFor(int n, int threadNum, RangeTask task) {
+        if (threadNum <= 1 || n <= 1) {
+            task.run(0, n);
+            return;
+        }
+
+        int chunkNum = Math.min(n, threadNum << 2);
+        Runnable runnable = () -> IntStream.range(0, chunkNum).parallel().forEach(
+                c -> task.run((int) ((long) n * c / chunkNum), (int) ((long) n * (c + 1) / chunkNum)));
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            runnable.run();
+        } else {
+            getPool(threadNum).submit(runnable).join();
+        }
+    }
+
+    /**
+     * Derives the seed of an independent random stream, e.g. one per permutation.
+     * The same (seed, ids) always gives the same stream, whatever thread draws it.
+     *
+     * @param seed the base seed
+     * @param ids  the stream ids
+     * @return the seed of the stream
+     */
+    public static long streamSeed(long seed, long... ids) {
+        long h = mix64(seed);
+        for (long id : ids) {
+            h = mix64(h ^ mix64(id + 0x9E3779B97F4A7C15L));
+        }
+        return h;
+    }
+
+    //SplitMix64 finalizer
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
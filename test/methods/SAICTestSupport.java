@@ -0,0 +1,72 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.dataset.Reader;
+import edu.whut.significance.dataset.Region;
+import edu.whut.significance.dataset.ResultData;
+import edu.whut.significance.methods.SAIC;
+import edu.whut.significance.util.BioLogger;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The setup shared by the SAIC and random forest tests: a timestamped log as in TestSAIC,
+ * the simulated data sets, the called regions of a run as "[start, end]" strings, and the
+ * p value comparison of two null models.
+ */
+final class SAICTestSupport {
+    static final String[] SIMULATED_FILES = new String[]{"data//simulatedData//a0.1b0.1_20170531162610.json",
+            "data//simulatedData//a0.2b0.2_20170531165631.json"};
+    //SAIC.Parameters.sigValueThreshold
+    static final double SIGNIFICANCE_THRESHOLD = 0.0476;
+
+    private SAICTestSupport() {
+    }
+
+    static void startLog() {
+        SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        new BioLogger("data", String.format("Result_%s.log", df.format(new Date())));
+    }
+
+    static RawData readSimulationData(String filePath) {
+        RawData rawData = new RawData();
+        Reader.readSimulationData(rawData, filePath);
+        return rawData;
+    }
+
+    //runs an already configured SAIC, its scores are then read from saic.getCNAScores()
+    static List<String> runSAIC(SAIC saic, RawData rawData) {
+        ResultData resultData = new ResultData();
+        saic.preprocess(rawData);
+        saic.process(resultData);
+        return regions(resultData);
+    }
+
+    /**
+     * The p values of two runs over the same CNA units must agree within tolerance, and within
+     * significantTolerance where the expected p value is below the significance threshold.
+     */
+    static void assertPValuesAgree(List<SAIC.CNAScore> expected, List<SAIC.CNAScore> actual,
+                                   double significantTolerance, double tolerance) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            double p = expected.get(i).getpValue();
+            assertEquals(expected.get(i).getStart(), actual.get(i).getStart());
+            assertEquals(actual.get(i) + " vs " + expected.get(i), p, actual.get(i).getpValue(),
+                    p < SIGNIFICANCE_THRESHOLD ? significantTolerance : tolerance);
+        }
+    }
+
+    static List<String> regions(ResultData resultData) {
+        List<String> regions = new ArrayList<>();
+        for (Region region : resultData.getRegionSet()) {
+            regions.add(String.format("[%d, %d]", region.getStartId(), region.getEndId()));
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,53 @@
+package methods;
+
+import edu.whut.significance.methods.ExtremeValueTail;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The probability weighted moment fit must recover a known GEV distribution, its upper tail must
+ * agree with the empirical exceedance rates of the sample, and the bootstrap KS test must keep a
+ * correct model and reject a bimodal sample.
+ */
+public class TestExtremeValueTail {
+    @Test
+    public void test() {
+        Random random = new Random(20170524L);
+        double location = 0.3, scale = 0.05, shape = 0.1;
+        int sampleNum = 1000;
+        double[] sample = new double[sampleNum];
+        for (int i = 0; i < sampleNum; i++) {
+            //inverse of F(x) = exp(-(1 + shape * z) ^ (-1 / shape))
+            double y = -Math.log(random.nextDouble());
+            sample[i] = location + scale * (Math.pow(y, -shape) - 1) / shape;
+        }
+
+        ExtremeValueTail tail = ExtremeValueTail.fit(sample, 200, new Random(1));
+        assertEquals(location, tail.getLocation(), 0.01);
+        assertEquals(scale, tail.getScale(), 0.005);
+        assertEquals(shape, tail.getShape(), 0.06);
+        assertTrue(tail.toString(), tail.isAccepted(0.05));
+
+        //the tail against the empirical p values at the upper quantiles
+        double[] sorted = sample.clone();
+        Arrays.sort(sorted);
+        for (double q : new double[]{0.5, 0.9, 0.95, 0.99}) {
+            double u = sorted[(int) (q * sampleNum)];
+            double empirical = 1 - q - 1.0 / sampleNum;
+            double standardError = Math.sqrt(empirical * (1 - empirical) / sampleNum);
+            assertEquals("q = " + q, empirical, tail.upperTail(u), 3 * standardError);
+        }
+
+        double[] bimodal = new double[sampleNum];
+        for (int i = 0; i < sampleNum; i++) {
+            bimodal[i] = (i % 2 == 0 ? 0.3 : 0.5) + 0.02 * random.nextGaussian();
+        }
+        assertFalse(ExtremeValueTail.fit(bimodal, 200, new Random(1)).isAccepted(0.05));
+    }
+}
@@ -0,0 +1,98 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.dataset.Region;
+import edu.whut.significance.dataset.ResultData;
+import edu.whut.significance.methods.RandomForest;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bags of the random forest are seeded by their ids, so the final regions must not depend
+ * on the number of threads, on parallel or serial bagging, nor on whether the bags are assembled
+ * from the cached samples; another forest seed must draw other bags. A 10-sample panel repeats many sample sets: reused or rerun, the forest must find
+ * the same sets, and a reused result must be counted once per bag of its set.
+ */
+public class TestRandomForestParallel {
+    @Test
+    public void test() {
+        startLog();
+
+        RawData rawData = readSimulationData("data//simulatedData//a0.2b0.2_20170531165631.json");
+
+        List<String> serial = runForest(rawData, 1, true);
+        assertFalse(serial.isEmpty());
+        assertEquals(serial, runForest(rawData, 4, true));
+        assertEquals(serial, runForest(rawData, 4, false));
+        ResultData serialBagging = new ResultData();
+        new RandomForest(rawData, serialBagging, false, 1, true);
+        assertEquals(serial, regions(serialBagging));
+
+        double[][] panel = new double[10][];
+        for (int i = 0; i < panel.length; i++) {
+            panel[i] = rawData.getDataMatrix().getRow(i);
+        }
+        RawData panelData = new RawData();
+        panelData.setData(panel);
+        assertEquals(runForest(panelData, 1, true), runForest(panelData, 4, true));
+
+        RandomForest reused = new RandomForest(panelData, new ResultData(), true, 4, true, true);
+        RandomForest rerun = new RandomForest(panelData, new ResultData(), true, 4, true, false);
+        int[] firstBag = reused.getFirstBags();
+        int bagNum = firstBag.length;
+        assertArrayEquals(firstBag, rerun.getFirstBags());
+        assertEquals(reused.getDistinctBagNum(), rerun.getDistinctBagNum());
+        assertTrue(reused.getDistinctBagNum() < bagNum);
+
+        //a set is counted once per bag, by its first bag when reused and by every bag when rerun
+        int[] setSize = new int[bagNum];
+        for (int b = 0; b < bagNum; b++) {
+            setSize[firstBag[b]]++;
+        }
+        int[] reusedWeights = reused.getBagWeights();
+        int[] rerunWeights = rerun.getBagWeights();
+        for (int b = 0; b < bagNum; b++) {
+            assertEquals(firstBag[b] == b ? setSize[b] : 0, reusedWeights[b]);
+            assertEquals(1, rerunWeights[b]);
+        }
+
+        //the first bags run with the same seeds either way
+        double[] expected = new double[panelData.getDataMatrix().getColumnDimension()];
+        int hitNum = 0;
+        for (int b = 0; b < bagNum; b++) {
+            ResultData first = reused.getBagResult(firstBag[b]);
+            assertEquals(regions(first), regions(rerun.getBagResult(firstBag[b])));
+            if (!first.getRegionSet().isEmpty()) hitNum++;
+            boolean[] covered = new boolean[expected.length];
+            for (Region region : first.getRegionSet()) {
+                for (int i = region.getStartId(); i <= region.getEndId(); i++) {
+                    covered[i] = true;
+                }
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (covered[i]) expected[i]++;
+            }
+        }
+        assertTrue(hitNum > 0);
+        assertArrayEquals(expected, reused.getVotes(), 0.0);
+
+        RandomForest seeded = new RandomForest(panelData, new ResultData(), false, 1, true, true, 7L);
+        assertArrayEquals(seeded.getVotes(),
+                new RandomForest(panelData, new ResultData(), true, 4, true, true, 7L).getVotes(), 0.0);
+        assertFalse(Arrays.equals(firstBag, seeded.getFirstBags()));
+    }
+
+    private List<String> runForest(RawData rawData, int threadNum, boolean cacheSamples) {
+        ResultData resultData = new ResultData();
+        new RandomForest(rawData, resultData, true, threadNum, cacheSamples);
+        return regions(resultData);
+    }
+}
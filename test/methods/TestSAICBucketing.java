@@ -0,0 +1,39 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Geometric length classes must not change the regions found on the simulated data,
+ * and a bucketed p value must never fall below the per-length one.
+ */
+public class TestSAICBucketing {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC saic = new SAIC();
+            SAIC bucketSAIC = new SAIC();
+            bucketSAIC.setLengthBucketRatio(1.25);
+            assertEquals(runSAIC(saic, rawData), runSAIC(bucketSAIC, rawData));
+
+            List<SAIC.CNAScore> scores = saic.getCNAScores();
+            List<SAIC.CNAScore> bucketScores = bucketSAIC.getCNAScores();
+            assertEquals(scores.size(), bucketScores.size());
+            for (int i = 0; i < scores.size(); i++) {
+                assertTrue(bucketScores.get(i).toString(),
+                        bucketScores.get(i).getpValue() >= scores.get(i).getpValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The FFT convolution null must find the same regions as the permutations, and its p values
+ * must track the permutation p values: within 0.01 below the significance threshold, and within
+ * 0.15 elsewhere. On the simulated data the largest gaps are 0.0024 below the threshold and
+ * 0.11 elsewhere, on long regions, where treating the windows as independent is least exact.
+ */
+public class TestSAICConvolution {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC permutation = new SAIC();
+            SAIC convolution = new SAIC();
+            convolution.setConvolutionNull(true);
+            assertEquals(runSAIC(permutation, rawData), runSAIC(convolution, rawData));
+            assertPValuesAgree(permutation.getCNAScores(), convolution.getCNAScores(), 0.01, 0.15);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.dataset.ResultData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * At a realistic number of samples the convolution null must not depend on the grid:
+ * the default bins per column give the p values of a ten times finer grid.
+ */
+public class TestSAICConvolutionGrid {
+    @Test
+    public void test() {
+        startLog();
+
+        RawData rawData = cohort(400, 500, 0.03, new Random(7));
+        List<SAIC.CNAScore> scores = runSAIC(rawData, 200);
+        List<SAIC.CNAScore> fineScores = runSAIC(rawData, 2000);
+
+        assertEquals(fineScores.size(), scores.size());
+        int moderateNum = 0;
+        for (int i = 0; i < scores.size(); i++) {
+            double p = scores.get(i).getpValue();
+            double fineP = fineScores.get(i).getpValue();
+            assertEquals(fineScores.get(i).getStart(), scores.get(i).getStart());
+            assertEquals(scores.get(i).toString(), fineP, p, 0.02 * fineP + 1e-4);
+            if (fineP > 1e-3 && fineP < 0.5) moderateNum++;
+        }
+        assertTrue(moderateNum > 0);
+    }
+
+    //one random amplified segment per sample, and a recurrent region in a fraction of the samples
+    private RawData cohort(int colNum, int probeNum, double fraction, Random random) {
+        double[][] data = new double[colNum][probeNum];
+        for (int j = 0; j < colNum; j++) {
+            int length = 5 + random.nextInt(60);
+            int start = random.nextInt(probeNum - length);
+            double value = 0.4 + 0.3 * random.nextDouble();
+            for (int i = start; i < start + length; i++) {
+                data[j][i] = value;
+            }
+            if (random.nextDouble() < fraction) {
+                value = 0.4 + 0.3 * random.nextDouble();
+                for (int i = 240; i < 260; i++) {
+                    data[j][i] = value;
+                }
+            }
+        }
+        RawData rawData = new RawData();
+        rawData.setData(data);
+        return rawData;
+    }
+
+    private List<SAIC.CNAScore> runSAIC(RawData rawData, int columnBinNum) {
+        SAIC saic = new SAIC();
+        saic.setConvolutionNull(true);
+        saic.setConvolutionColumnBinNum(columnBinNum);
+        saic.preprocess(rawData);
+        saic.process(new ResultData());
+        return saic.getCNAScores();
+    }
+}
@@ -0,0 +1,59 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cyclic shift null, with and without stratified shifts, must find the same regions as
+ * the block shuffle on the simulated data. Its p values must stay within 0.01 of the block
+ * shuffle below the significance threshold and within 0.25 elsewhere. It is a different null:
+ * a rotation keeps a column's blocks in their order, so long windows see other sums, and on
+ * a0.2b0.2 the 34-probe region 638-671 moves from 0.079 to about 0.29. Below the threshold
+ * the largest gap measured is 0.007.
+ */
+public class TestSAICCyclicShift {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC shuffled = saic(false, false);
+            List<String> shuffledRegions = runSAIC(shuffled, rawData);
+            for (boolean stratifiedPermute : new boolean[]{false, true}) {
+                SAIC cyclic = saic(true, stratifiedPermute);
+                assertEquals(shuffledRegions, runSAIC(cyclic, rawData));
+                assertPValuesAgree(shuffled.getCNAScores(), cyclic.getCNAScores(), 0.01, 0.25);
+            }
+        }
+    }
+
+    @Test
+    public void standardErrors() {
+        startLog();
+
+        RawData rawData = readSimulationData("data//simulatedData//a0.2b0.2_20170531165631.json");
+        SAIC saic = saic(true, true);
+        runSAIC(saic, rawData);
+
+        //one draw at p = 0.0476 over 1000 permutations has a standard error of about 0.0067
+        for (SAIC.CNAScore score : saic.getCNAScores()) {
+            assertTrue(score.toString(), score.getStandardError() > 0 && score.getStandardError() < 0.02);
+        }
+    }
+
+    private SAIC saic(boolean cyclicShiftNull, boolean stratifiedPermute) {
+        SAIC saic = new SAIC();
+        saic.setCyclicShiftNull(cyclicShiftNull);
+        saic.setStratifiedPermute(stratifiedPermute);
+        return saic;
+    }
+}
@@ -0,0 +1,44 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The permutation result must not depend on the number of threads: the same regions, and
+ * bit-identical p values for every CNA unit.
+ */
+public class TestSAICParallel {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC serial = saic(1);
+            SAIC parallel = saic(4);
+            assertEquals(runSAIC(serial, rawData), runSAIC(parallel, rawData));
+
+            List<SAIC.CNAScore> serialScores = serial.getCNAScores();
+            List<SAIC.CNAScore> parallelScores = parallel.getCNAScores();
+            assertEquals(serialScores.size(), parallelScores.size());
+            for (int i = 0; i < serialScores.size(); i++) {
+                assertEquals(serialScores.get(i).toString(),
+                        Double.doubleToLongBits(serialScores.get(i).getpValue()),
+                        Double.doubleToLongBits(parallelScores.get(i).getpValue()));
+            }
+        }
+    }
+
+    private SAIC saic(int threadNum) {
+        SAIC saic = new SAIC();
+        saic.setThreadNum(threadNum);
+        return saic;
+    }
+}
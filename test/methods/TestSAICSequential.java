@@ -0,0 +1,44 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sequential Monte Carlo early stopping must call the same regions as drawing its whole budget
+ * (420 permutations for 20 exceedances at the 0.0476 threshold) with the same seeds, and some
+ * length classes must stop before the budget is used up.
+ */
+public class TestSAICSequential {
+    private static final int BUDGET = 420;
+
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC full = new SAIC();
+            full.setPermuteNum(BUDGET);
+            List<String> fullRegions = runSAIC(full, rawData);
+
+            SAIC sequential = new SAIC();
+            sequential.setSequentialPermute(true);
+            assertEquals(fullRegions, runSAIC(sequential, rawData));
+
+            int stopped = 0;
+            for (SAIC.CNAScore score : sequential.getCNAScores()) {
+                assertTrue(score.toString(), score.getPermuteNum() > 0 && score.getPermuteNum() <= BUDGET);
+                if (score.getPermuteNum() < BUDGET) stopped++;
+            }
+            assertTrue(stopped > 0);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Amp and del processed together with shared shuffles must find the same regions as the
+ * separate branches, whatever the number of threads. The simulated data only hold
+ * amplifications, so every sample's probes are followed by a negated copy of them, rotated
+ * by a third of the probes. This doubles the probe count and gives the del branch regions too.
+ */
+public class TestSAICShared {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+            rawData = withDeletions(rawData);
+
+            List<String> separate = runSAIC(rawData, false, 4);
+            assertEquals(separate, runSAIC(rawData, true, 1));
+            assertEquals(separate, runSAIC(rawData, true, 4));
+        }
+    }
+
+    private RawData withDeletions(RawData rawData) {
+        RealMatrix dataMatrix = rawData.getDataMatrix();
+        int sampleNum = dataMatrix.getRowDimension();
+        int probeNum = dataMatrix.getColumnDimension();
+        double[][] data = new double[sampleNum][2 * probeNum];
+        for (int i = 0; i < sampleNum; i++) {
+            for (int j = 0; j < probeNum; j++) {
+                data[i][j] = dataMatrix.getEntry(i, j);
+                data[i][probeNum + j] = -dataMatrix.getEntry(i, (j + probeNum / 3) % probeNum);
+            }
+        }
+        RawData doubled = new RawData();
+        doubled.setData(data);
+        return doubled;
+    }
+
+    private List<String> runSAIC(RawData rawData, boolean sharedPermute, int threadNum) {
+        SAIC saic = new SAIC();
+        saic.setSharedPermute(sharedPermute);
+        saic.setThreadNum(threadNum);
+        return SAICTestSupport.runSAIC(saic, rawData);
+    }
+}
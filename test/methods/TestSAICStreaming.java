@@ -0,0 +1,44 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Streaming exceedance counters must give the same regions as the full maxUScore matrix, and
+ * bit-identical p values for every CNA unit, since they count the same exceedances.
+ */
+public class TestSAICStreaming {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC full = saic(false);
+            SAIC streaming = saic(true);
+            assertEquals(runSAIC(full, rawData), runSAIC(streaming, rawData));
+
+            List<SAIC.CNAScore> fullScores = full.getCNAScores();
+            List<SAIC.CNAScore> streamingScores = streaming.getCNAScores();
+            assertEquals(fullScores.size(), streamingScores.size());
+            for (int i = 0; i < fullScores.size(); i++) {
+                assertEquals(fullScores.get(i).toString(),
+                        Double.doubleToLongBits(fullScores.get(i).getpValue()),
+                        Double.doubleToLongBits(streamingScores.get(i).getpValue()));
+            }
+        }
+    }
+
+    private SAIC saic(boolean streamingPermute) {
+        SAIC saic = new SAIC();
+        saic.setStreamingPermute(streamingPermute);
+        return saic;
+    }
+}
@@ -0,0 +1,51 @@
+package methods;
+
+import edu.whut.significance.dataset.RawData;
+import edu.whut.significance.methods.SAIC;
+import org.junit.Test;
+
+import java.util.List;
+
+import static methods.SAICTestSupport.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Warm start p values against a cold run. With a staleness limit of 0 every stale row is
+ * redrawn after each exclusion, with the seeds of the cold run, so the p values must be equal;
+ * with the default limit the partly reused null must stay within Monte Carlo error.
+ */
+public class TestSAICWarmStart {
+    @Test
+    public void test() {
+        startLog();
+
+        for (String filePath : SIMULATED_FILES) {
+            RawData rawData = readSimulationData(filePath);
+
+            SAIC cold = new SAIC();
+            List<String> coldRegions = runSAIC(cold, rawData);
+            List<SAIC.CNAScore> coldScores = cold.getCNAScores();
+
+            SAIC forced = new SAIC();
+            forced.setWarmStartPermute(true);
+            forced.setMaxStaleRounds(0);
+            assertEquals(coldRegions, runSAIC(forced, rawData));
+            assertEquals(coldScores.size(), forced.getCNAScores().size());
+            for (int i = 0; i < coldScores.size(); i++) {
+                assertEquals(coldScores.get(i).getpValue(), forced.getCNAScores().get(i).getpValue(), 0.0);
+            }
+
+            SAIC warm = new SAIC();
+            warm.setWarmStartPermute(true);
+            runSAIC(warm, rawData);
+            assertEquals(coldScores.size(), warm.getCNAScores().size());
+            for (int i = 0; i < coldScores.size(); i++) {
+                double p = coldScores.get(i).getpValue();
+                double standardError = Math.sqrt(Math.max(p * (1 - p), 1e-3) / 1000);
+                double difference = Math.abs(p - warm.getCNAScores().get(i).getpValue());
+                assertTrue(warm.getCNAScores().get(i) + " vs " + coldScores.get(i), difference <= 4 * standardError);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package methods;
+
+import edu.whut.significance.dataset.Region;
+import edu.whut.significance.dataset.ResultData;
+import edu.whut.significance.methods.VoteAccumulator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Vote counts against hand-computed ones: the nested and overlapping regions of a bag vote once
+ * per probe, and the parts of a region outside the probe range are clipped.
+ */
+public class TestVoteAccumulator {
+    @Test
+    public void test() {
+        VoteAccumulator votes = new VoteAccumulator(20);
+        //2..10 once: [4, 6] lies inside [2, 8], [7, 10] overlaps it
+        votes.add(bag(new Region(2, 8), new Region(4, 6), new Region(7, 10)), 1);
+        //0..1, 9 and 18..19 three times, [-5, -2] and [30, 40] fall outside
+        votes.add(bag(new Region(-5, -2), new Region(-3, 1), new Region(9, 9), new Region(18, 25),
+                new Region(30, 40)), 3);
+        votes.add(bag(), 4);
+        assertArrayEquals(new double[]{3, 3, 1, 1, 1, 1, 1, 1, 1, 4, 1, 0, 0, 0, 0, 0, 0, 0, 3, 3},
+                votes.getVotes(), 0.0);
+
+        VoteAccumulator other = new VoteAccumulator(20);
+        other.add(bag(new Region(0, 19)), 2);
+        votes.addAll(other);
+        assertArrayEquals(new double[]{5, 5, 3, 3, 3, 3, 3, 3, 3, 6, 3, 2, 2, 2, 2, 2, 2, 2, 5, 5},
+                votes.getVotes(), 0.0);
+    }
+
+    private ResultData bag(Region... regions) {
+        ResultData resultData = new ResultData();
+        for (Region region : regions) {
+            resultData.getRegionSet().add(region);
+        }
+        return resultData;
+    }
+}